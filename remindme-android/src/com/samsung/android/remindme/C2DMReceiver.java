@@ -27,6 +27,7 @@ import android.widget.Toast;
 
 import com.google.android.c2dm.C2DMBaseReceiver;
 import com.google.android.c2dm.C2DMessaging;
+import com.samsung.remindme.allshared.TraceId;
 
 /**
  * Broadcast receiver that handles Android Cloud to Data Messaging (AC2DM) messages, initiated
@@ -52,13 +53,20 @@ public class C2DMReceiver extends C2DMBaseReceiver {
         String message = intent.getExtras().getString(Config.C2DM_MESSAGE_EXTRA);
         if (Config.C2DM_MESSAGE_SYNC.equals(message)) {
             if (accountName != null) {
+                // Hand the change's trace ID on to the sync it triggers.
+                String traceId = intent.getExtras().getString(TraceId.KEY);
                 if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    Log.d(TAG, "Messaging request received for account " + accountName);
+                    Log.d(TAG, "Messaging request received for account " + accountName
+                            + " (trace " + traceId + ")");
                 }
 
+                Bundle extras = new Bundle();
+                if (traceId != null) {
+                    extras.putString(TraceId.KEY, traceId);
+                }
                 ContentResolver.requestSync(
                         new Account(accountName, SyncAdapter.GOOGLE_ACCOUNT_TYPE),
-                        RemindMeContract.AUTHORITY, new Bundle());
+                        RemindMeContract.AUTHORITY, extras);
             }
         }
     }
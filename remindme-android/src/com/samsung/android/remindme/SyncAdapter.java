@@ -19,6 +19,7 @@ package com.samsung.android.remindme;
 import com.samsung.remindme.allshared.JsonRpcClient;
 import com.samsung.remindme.allshared.JsonRpcException;
 import com.samsung.remindme.allshared.RemindMeProtocol;
+import com.samsung.remindme.allshared.TraceId;
 import com.samsung.android.remindme.ModelJava.DeviceRegistration;
 import com.samsung.android.remindme.jsonrpc.AuthenticatedJsonRpcJavaClient;
 import com.samsung.android.remindme.jsonrpc.AuthenticatedJsonRpcJavaClient.InvalidAuthTokenException;
@@ -47,6 +48,7 @@ import android.content.SyncStats;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -56,10 +58,16 @@ import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 /**
  * RemindMe SyncAdapter implementation. The sync adapter does the following:
@@ -81,8 +89,21 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     public static final String DEVICE_TYPE = "android";
     public static final String LAST_SYNC = "last_sync";
     public static final String SERVER_LAST_SYNC = "server_last_sync";
+
+    /**
+     * The server's change sequence number as of the last complete sync, if it sent one.
+     */
+    public static final String SERVER_SYNC_SEQ = "server_sync_seq";
     public static final String DM_REGISTERED = "dm_registered";
 
+    /**
+     * Idempotency key of a sync that got no response, and a digest of the params it sent. A
+     * retry with the same params reuses the key, so the server replays the lost result
+     * instead of applying the changes again.
+     */
+    public static final String PENDING_SYNC_KEY = "pending_sync_key";
+    public static final String PENDING_SYNC_DIGEST = "pending_sync_digest";
+
     private static final String[] PROJECTION = new String[] {
         RemindMeContract.Alerts._ID, // 0
         RemindMeContract.Alerts.SERVER_ID, // 1
@@ -115,10 +136,16 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         final boolean manualSync = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
         final boolean initialize = extras.getBoolean(ContentResolver.SYNC_EXTRAS_INITIALIZE, false);
 
+        // Syncs triggered by a push message continue the trace of the change that caused it.
+        String traceId = extras.getString(TraceId.KEY);
+        if (traceId == null) {
+            traceId = TraceId.generate();
+        }
+
         C2DMReceiver.refreshAppC2DMRegistrationState(mContext);
 
         Log.i(TAG, "Beginning " + (uploadOnly ? "upload-only" : "full") +
-                " sync for account " + account.name);
+                " sync for account " + account.name + " (trace " + traceId + ")");
 
         // Read this account's sync metadata
         final SharedPreferences syncMeta = mContext.getSharedPreferences("sync:" + account.name, 0);
@@ -229,6 +256,10 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             params.put(RemindMeProtocol.ARG_CLIENT_DEVICE_ID, clientDeviceId);
             params.put(RemindMeProtocol.AlertsSync.ARG_SINCE_DATE,
                     Util.formatDateISO8601(new Date(lastServerSyncTime)));
+            if (syncMeta.contains(SERVER_SYNC_SEQ)) {
+                params.put(RemindMeProtocol.AlertsSync.ARG_SINCE_SEQ,
+                        syncMeta.getLong(SERVER_SYNC_SEQ, 0));
+            }
 
             JSONArray locallyChangedAlertsJson = new JSONArray();
             for (ModelJava.Alert locallyChangedAlert : locallyChangedAlerts) {
@@ -236,6 +267,8 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             }
 
             params.put(RemindMeProtocol.AlertsSync.ARG_LOCAL_NOTES, locallyChangedAlertsJson);
+            params.put(RemindMeProtocol.ARG_IDEMPOTENCY_KEY,
+                    getSyncIdempotencyKey(syncMeta, params.toString()));
             alertsSyncCall.setParams(params);
         } catch (JSONException e) {
             logErrorMessage("Error generating sync remote RPC parameters.", manualSync);
@@ -249,8 +282,11 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         if (deviceRegChange != 0)
             jsonRpcCalls.add(deviceRegCall);
 
-        jsonRpcClient.callBatch(jsonRpcCalls, new JsonRpcClient.BatchCallback() {
+        jsonRpcClient.callBatch(jsonRpcCalls, traceId, new JsonRpcClient.BatchCallback() {
             public void onData(Object[] data) {
+                // The server has answered this sync; the next one is a new operation.
+                syncMeta.edit().remove(PENDING_SYNC_KEY).remove(PENDING_SYNC_DIGEST).commit();
+
                 if (data[0] != null) {
                     // Read alerts sync data.
                     JSONObject dataJson = (JSONObject) data[0];
@@ -263,13 +299,37 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
                         reconcileSyncedAlerts(provider, account, changedAlerts, syncResult.stats);
 
-                        // If sync is successful (no exceptions thrown), update sync metadata
-                        long newServerSyncTime = Util.parseDateISO8601(dataJson.getString(
-                                RemindMeProtocol.AlertsSync.RET_NEW_SINCE_DATE)).getTime();
-                        syncMeta.edit().putLong(LAST_SYNC, newSyncTime).commit();
-                        syncMeta.edit().putLong(SERVER_LAST_SYNC, newServerSyncTime).commit();
-                        Log.i(TAG, "Sync complete, setting last sync time to "
-                                + Long.toString(newSyncTime));
+                        if (dataJson.optBoolean(RemindMeProtocol.AlertsSync.RET_MORE, false)) {
+                            // The server ran out of time and only merged part of the changes;
+                            // keep the sync metadata so the next pass picks up the rest.
+                            Log.i(TAG, "Partial sync, more changes pending on the server");
+                            syncResult.moreRecordsToGet = true;
+                        } else {
+                            if (dataJson.optBoolean(RemindMeProtocol.AlertsSync.RET_FULL_RESYNC,
+                                    false)) {
+                                // Deletes this old may have been forgotten by the server;
+                                // anything it didn't send back is gone.
+                                Log.i(TAG, "Full resync, removing alerts deleted on the server");
+                                deleteAlertsMissingFromServer(provider, account, changedAlerts,
+                                        syncResult.stats);
+                            }
+
+                            // If sync is successful (no exceptions thrown), update sync metadata
+                            long newServerSyncTime = Util.parseDateISO8601(dataJson.getString(
+                                    RemindMeProtocol.AlertsSync.RET_NEW_SINCE_DATE)).getTime();
+                            SharedPreferences.Editor editor = syncMeta.edit();
+                            editor.putLong(LAST_SYNC, newSyncTime);
+                            editor.putLong(SERVER_LAST_SYNC, newServerSyncTime);
+                            if (dataJson.has(RemindMeProtocol.AlertsSync.RET_NEW_SINCE_SEQ)) {
+                                editor.putLong(SERVER_SYNC_SEQ, dataJson.getLong(
+                                        RemindMeProtocol.AlertsSync.RET_NEW_SINCE_SEQ));
+                            } else {
+                                editor.remove(SERVER_SYNC_SEQ);
+                            }
+                            editor.commit();
+                            Log.i(TAG, "Sync complete, setting last sync time to "
+                                    + Long.toString(newSyncTime));
+                        }
                     } catch (JSONException e) {
                         logErrorMessage("Error parsing alert sync RPC response", manualSync);
                         e.printStackTrace();
@@ -314,6 +374,19 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                     jsonRpcClient.invalidateAccountAcsidToken(account);
                 }
 
+                if (e.getRetryAfterSeconds() > 0) {
+                    // The server is shedding load; back off instead of retrying right away.
+                    Log.w(TAG, "Server busy, delaying sync by " + e.getRetryAfterSeconds() + "s");
+                    syncResult.stats.numIoExceptions++;
+                    if (Build.VERSION.SDK_INT >= 11) {
+                        // SyncResult.delayUntil is only honored from Honeycomb on.
+                        syncResult.delayUntil = e.getRetryAfterSeconds();
+                    }
+                } else if (callIndex == -1) {
+                    // No usable response; let the sync manager retry with backoff.
+                    syncResult.stats.numIoExceptions++;
+                }
+
                 provider.release();
                 logErrorMessage("Error calling remote alert sync RPC", manualSync);
                 e.printStackTrace();
@@ -321,6 +394,39 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         });
     }
 
+    /**
+     * Returns the idempotency key for a sync sending the given params: the key of the last
+     * unanswered sync if it sent exactly the same params, or a new one otherwise.
+     */
+    private static String getSyncIdempotencyKey(SharedPreferences syncMeta, String paramsJson) {
+        String digest = digest(paramsJson);
+        String key = syncMeta.getString(PENDING_SYNC_KEY, null);
+        if (key == null || digest == null
+                || !digest.equals(syncMeta.getString(PENDING_SYNC_DIGEST, null))) {
+            key = UUID.randomUUID().toString();
+            syncMeta.edit()
+                    .putString(PENDING_SYNC_KEY, key)
+                    .putString(PENDING_SYNC_DIGEST, digest)
+                    .commit();
+        }
+        return key;
+    }
+
+    private static String digest(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
     public void reconcileSyncedAlerts(ContentProviderClient provider, Account account,
             List<ModelJava.Alert> changedAlerts, SyncStats syncStats)
             throws RemoteException, OperationApplicationException {
@@ -374,6 +480,34 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         provider.applyBatch(operations);
     }
 
+    /**
+     * Deletes the account's synced alerts that aren't in the given full list of the user's
+     * alerts on the server.
+     */
+    public void deleteAlertsMissingFromServer(ContentProviderClient provider, Account account,
+            List<ModelJava.Alert> serverAlerts, SyncStats syncStats)
+            throws RemoteException, OperationApplicationException {
+        Set<String> serverIds = new HashSet<String>();
+        for (ModelJava.Alert serverAlert : serverAlerts) {
+            serverIds.add(serverAlert.getServerId());
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        Cursor alertCursor = provider.query(RemindMeContract.buildAlertListUri(account.name),
+                PROJECTION, RemindMeContract.Alerts.SERVER_ID + " IS NOT NULL", null, null);
+        while (alertCursor.moveToNext()) {
+            if (!serverIds.contains(alertCursor.getString(1))) {
+                operations.add(ContentProviderOperation.newDelete(addCallerIsSyncAdapterParameter(
+                        RemindMeContract.buildAlertUri(account.name, alertCursor.getLong(0))))
+                        .build());
+                syncStats.numDeletes++;
+            }
+        }
+        alertCursor.close();
+
+        provider.applyBatch(operations);
+    }
+
     public List<ModelJava.Alert> getLocallyChangedAlerts(ContentProviderClient provider,
             Account account, Date sinceDate) throws RemoteException {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
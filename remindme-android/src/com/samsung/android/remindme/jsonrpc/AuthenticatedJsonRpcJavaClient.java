@@ -85,6 +85,9 @@ public class AuthenticatedJsonRpcJavaClient extends JsonRpcJavaClient {
             boolean forceReauthenticate) throws AuthenticationException, OperationCanceledException,
             RequestedUserAuthenticationException, InvalidAuthTokenException {
 
+        // Cached results belong to the account they were fetched for.
+        setCacheScope(account.name);
+
         String existingToken = mTokenStoreHelper.getToken(account);
         if (!forceReauthenticate && existingToken != null) {
             BasicClientCookie c = new BasicClientCookie("ACSID", existingToken);
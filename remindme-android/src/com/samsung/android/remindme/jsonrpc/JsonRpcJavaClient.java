@@ -18,11 +18,17 @@ package com.samsung.android.remindme.jsonrpc;
 
 import com.samsung.remindme.allshared.JsonRpcClient;
 import com.samsung.remindme.allshared.JsonRpcException;
+import com.samsung.remindme.allshared.RemindMeProtocol;
+import com.samsung.remindme.allshared.TraceId;
+import com.samsung.javashared.BinaryJson;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -30,13 +36,23 @@ import org.json.JSONTokener;
 
 import android.util.Log;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * An Android JSON-RPC client, unaware of authentication (left up to extending classes).
@@ -44,13 +60,77 @@ import java.util.List;
 public class JsonRpcJavaClient implements JsonRpcClient {
     static final String TAG = JsonRpcJavaClient.class.getSimpleName();
 
+    /**
+     * Request bodies larger than this many bytes are gzipped, once the server has advertised
+     * that it accepts gzipped requests.
+     */
+    static final int COMPRESSION_THRESHOLD = 1024;
+
+    /**
+     * RPC URLs whose servers have advertised, through an <code>Accept-Encoding</code> response
+     * header, that they accept gzipped request bodies. Kept across client instances since a
+     * new client is created for every sync.
+     */
+    private static final Set<String> sGzipRequestUrls =
+            Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * RPC URLs whose servers are known to support the {@link BinaryJson} wire format, either
+     * because they answered in it or reported a high enough <code>server.info</code> protocol
+     * version. Requests to these URLs are sent in the binary format too.
+     */
+    private static final Set<String> sBinaryUrls =
+            Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * Maximum number of results kept for conditional requests.
+     */
+    static final int MAX_CACHED_RESULTS = 32;
+
+    /**
+     * Time, in milliseconds, the server is given to answer a request. Calls it can't finish
+     * by then fail instead of running on after the client has stopped waiting.
+     */
+    static final int REQUEST_DEADLINE_MILLIS = 20000;
+
+    /**
+     * Socket read timeout, in milliseconds; longer than the request deadline, so that the
+     * server's answer normally arrives before the client gives up.
+     */
+    static final int SOCKET_TIMEOUT_MILLIS = 30000;
+
     protected DefaultHttpClient mHttpClient;
 
+    /**
+     * The last validated result of each call (keyed by cache scope, URL, method and params), so
+     * that repeated calls can send <code>if_none_match</code> and reuse the data on a
+     * <code>not_modified</code> result. Kept across client instances since a new client is
+     * created for every sync.
+     */
+    private static final Map<String, CachedResult> sCachedResults = Collections.synchronizedMap(
+            new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                    return size() > MAX_CACHED_RESULTS;
+                }
+            });
+
     private final String mRpcUrl;
 
+    private String mCacheScope = "";
+
     public JsonRpcJavaClient(String rpcUrl) {
         mRpcUrl = rpcUrl;
         mHttpClient = new DefaultHttpClient();
+        HttpConnectionParams.setSoTimeout(mHttpClient.getParams(), SOCKET_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Sets the scope of this client's cached results, such as the account it calls the server
+     * as, so that results are never reused across accounts.
+     */
+    protected void setCacheScope(String cacheScope) {
+        mCacheScope = cacheScope;
     }
 
     public void call(String methodName, Object params, final JsonRpcClient.Callback callback) {
@@ -70,10 +150,19 @@ public class JsonRpcJavaClient implements JsonRpcClient {
 
     public void callBatch(final List<JsonRpcClient.Call> calls,
             final JsonRpcClient.BatchCallback callback) {
+        callBatch(calls, TraceId.generate(), callback);
+    }
+
+    public void callBatch(final List<JsonRpcClient.Call> calls, String traceId,
+            final JsonRpcClient.BatchCallback callback) {
         HttpPost httpPost = new HttpPost(mRpcUrl);
         JSONObject requestJson = new JSONObject();
         JSONArray callsJson = new JSONArray();
+        final String[] cacheKeys = new String[calls.size()];
         try {
+            requestJson.put(TraceId.KEY, traceId);
+            requestJson.put(RemindMeProtocol.REQUEST_DEADLINE_MS, REQUEST_DEADLINE_MILLIS);
+
             for (int i = 0; i < calls.size(); i++) {
                 JsonRpcClient.Call call = calls.get(i);
 
@@ -91,64 +180,187 @@ public class JsonRpcJavaClient implements JsonRpcClient {
                         callJson.put(key, callParams.get(key));
                     }
                 }
+                if (RemindMeProtocol.ServerInfo.METHOD.equals(call.getMethodName())
+                        && !callJson.has(RemindMeProtocol.ServerInfo.ARG_PROTOCOL_VERSION)) {
+                    callJson.put(RemindMeProtocol.ServerInfo.ARG_PROTOCOL_VERSION,
+                            RemindMeProtocol.ServerInfo.PROTOCOL_VERSION_BINARY);
+                }
+
+                cacheKeys[i] = mCacheScope + " " + mRpcUrl + " " + callJson.toString();
+                CachedResult cachedResult = sCachedResults.get(cacheKeys[i]);
+                if (cachedResult != null) {
+                    callJson.put(RemindMeProtocol.ARG_IF_NONE_MATCH, cachedResult.validator);
+                }
 
                 callsJson.put(i, callJson);
             }
 
             requestJson.put("calls", callsJson);
-            httpPost.setEntity(new StringEntity(requestJson.toString(), "UTF-8"));
+            if (sBinaryUrls.contains(mRpcUrl)) {
+                httpPost.setEntity(createRequestEntity(BinaryJson.toBytes(requestJson),
+                        BinaryJson.CONTENT_TYPE));
+            } else {
+                httpPost.setEntity(createRequestEntity(requestJson.toString().getBytes("UTF-8"),
+                        "text/plain; charset=UTF-8"));
+            }
+            httpPost.setHeader("Accept", BinaryJson.CONTENT_TYPE + ", application/json");
+            httpPost.setHeader("Accept-Encoding", "gzip");
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.v(TAG, "POST request: " + requestJson.toString());
             }
         } catch (JSONException e) {
             // throw e;
-        } catch (UnsupportedEncodingException e) {
+        } catch (IOException e) {
             // throw e;
         }
 
         try {
             HttpResponse httpResponse = mHttpClient.execute(httpPost);
             final int responseStatusCode = httpResponse.getStatusLine().getStatusCode();
-            if (200 <= responseStatusCode && responseStatusCode < 300) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(httpResponse
-                        .getEntity().getContent(), "UTF-8"), 8 * 1024);
+            Header acceptEncoding = httpResponse.getFirstHeader("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.getValue().contains("gzip")) {
+                sGzipRequestUrls.add(mRpcUrl);
+            }
 
-                StringBuilder sb = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    sb.append(line).append("\n");
-                }
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "POST response: " + sb.toString());
-                }
-                JSONTokener tokener = new JSONTokener(sb.toString());
-                JSONObject responseJson = new JSONObject(tokener);
+            if (200 <= responseStatusCode && responseStatusCode < 300) {
+                JSONObject responseJson = readResponse(httpResponse.getEntity());
                 JSONArray resultsJson = responseJson.getJSONArray("results");
                 Object[] resultData = new Object[calls.size()];
 
                 for (int i = 0; i < calls.size(); i++) {
                     JSONObject result = resultsJson.getJSONObject(i);
                     if (result.has("error")) {
-                        callback.onError(i, new JsonRpcException((int) result.getInt("error"),
-                                calls.get(i).getMethodName(), result.getString("message"), null));
+                        JsonRpcException e = new JsonRpcException((int) result.getInt("error"),
+                                calls.get(i).getMethodName(), result.getString("message"), null);
+                        e.setRetryAfterSeconds(result.optInt("retry_after"));
+                        callback.onError(i, e);
                         resultData[i] = null;
+                    } else if (result.optBoolean("not_modified")) {
+                        CachedResult cachedResult = sCachedResults.get(cacheKeys[i]);
+                        resultData[i] = (cachedResult != null) ? cachedResult.data : null;
                     } else {
                         resultData[i] = result.get("data");
+                        if (RemindMeProtocol.ServerInfo.METHOD.equals(calls.get(i).getMethodName())
+                                && resultData[i] instanceof JSONObject) {
+                            noteProtocolVersion(((JSONObject) resultData[i]).optInt(
+                                    RemindMeProtocol.ServerInfo.RET_PROTOCOL_VERSION));
+                        }
+                        if (result.has("validator")) {
+                            sCachedResults.put(cacheKeys[i], new CachedResult(
+                                    result.getString("validator"), resultData[i]));
+                        }
                     }
                 }
 
                 callback.onData(resultData);
             } else {
-                callback.onError(-1, new JsonRpcException(-1,
+                JsonRpcException e = new JsonRpcException(-1,
                         "Received HTTP status code other than HTTP 2xx: "
-                                + httpResponse.getStatusLine().getReasonPhrase()));
+                                + httpResponse.getStatusLine().getReasonPhrase());
+                Header retryAfter = httpResponse.getFirstHeader("Retry-After");
+                if (retryAfter != null) {
+                    try {
+                        e.setRetryAfterSeconds(Integer.parseInt(retryAfter.getValue().trim()));
+                    } catch (NumberFormatException ignored) {
+                        // An HTTP date; leave the retry up to the caller's own backoff.
+                    }
+                }
+                callback.onError(-1, e);
             }
         } catch (IOException e) {
             Log.e("JsonRpcJavaClient", e.getMessage());
             e.printStackTrace();
+            // The calls may or may not have been performed; callers can retry writes safely
+            // by sending the same idempotency_key.
+            callback.onError(-1, new JsonRpcException(-1, e.getMessage(), e));
         } catch (JSONException e) {
             Log.e("JsonRpcJavaClient", "Error parsing server JSON response: " + e.getMessage());
             e.printStackTrace();
         }
     }
+
+    private static final class CachedResult {
+        final String validator;
+        final Object data;
+
+        CachedResult(String validator, Object data) {
+            this.validator = validator;
+            this.data = data;
+        }
+    }
+
+    private void noteProtocolVersion(int protocolVersion) {
+        if (protocolVersion >= RemindMeProtocol.ServerInfo.PROTOCOL_VERSION_BINARY)
+            sBinaryUrls.add(mRpcUrl);
+    }
+
+    /**
+     * Reads the response envelope in whichever wire format the server chose.
+     */
+    private JSONObject readResponse(HttpEntity entity) throws IOException, JSONException {
+        Header contentType = entity.getContentType();
+        if (contentType != null && contentType.getValue().startsWith(BinaryJson.CONTENT_TYPE)) {
+            sBinaryUrls.add(mRpcUrl);
+            Object responseJson = new BinaryJson.Reader(new BufferedInputStream(
+                    openResponseContent(entity), 8 * 1024)).readValue();
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "POST response (binary): " + responseJson);
+            }
+            if (!(responseJson instanceof JSONObject))
+                throw new JSONException("Response is not a JSONObject");
+            return (JSONObject) responseJson;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                openResponseContent(entity), "UTF-8"), 8 * 1024);
+
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            sb.append(line).append("\n");
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "POST response: " + sb.toString());
+        }
+        return new JSONObject(new JSONTokener(sb.toString()));
+    }
+
+    /**
+     * Creates the POST entity for a request body, gzipping it if it's large enough and the
+     * server is known to accept gzipped requests.
+     */
+    private HttpEntity createRequestEntity(byte[] bodyBytes, String contentType)
+            throws IOException {
+        if (bodyBytes.length <= COMPRESSION_THRESHOLD || !sGzipRequestUrls.contains(mRpcUrl)) {
+            ByteArrayEntity entity = new ByteArrayEntity(bodyBytes);
+            entity.setContentType(contentType);
+            return entity;
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bodyBytes.length / 4);
+        GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+        gzipOut.write(bodyBytes);
+        gzipOut.close();
+
+        ByteArrayEntity entity = new ByteArrayEntity(compressed.toByteArray());
+        entity.setContentType(contentType);
+        entity.setContentEncoding("gzip");
+        return entity;
+    }
+
+    /**
+     * Returns the response body, decoding its Content-Encoding if the server compressed it.
+     */
+    private static InputStream openResponseContent(HttpEntity entity) throws IOException {
+        InputStream in = entity.getContent();
+        Header contentEncoding = entity.getContentEncoding();
+        if (contentEncoding != null) {
+            if ("gzip".equalsIgnoreCase(contentEncoding.getValue())) {
+                return new GZIPInputStream(in);
+            } else if ("deflate".equalsIgnoreCase(contentEncoding.getValue())) {
+                return new InflaterInputStream(in);
+            }
+        }
+        return in;
+    }
 }
@@ -20,6 +20,7 @@ package com.samsung.remindme.allshared;
 public class JsonRpcException extends Exception {
     private int httpCode;
     private String methodName;
+    private int retryAfterSeconds;
 
     public JsonRpcException(int httpCode, String methodName, String message, Throwable cause) {
         super(message, cause);
@@ -51,6 +52,18 @@ public class JsonRpcException extends Exception {
         this.methodName = methodName;
     }
 
+    /**
+     * Returns the number of seconds after which the call may be retried, if the server shed
+     * it due to load, or zero.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
     @Override
     public String getMessage() {
         return super.getMessage();
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.remindme.allshared;
+
+import java.util.Random;
+
+/**
+ * Correlation IDs that follow a change from the RPC batch that made it, through the push
+ * message it caused, to the sync it triggered on other devices. Clients send one in the
+ * <code>trace_id</code> envelope key.
+ */
+public final class TraceId {
+    /**
+     * Key of the trace ID in RPC envelopes, C2DM message data and sync extras.
+     */
+    public static final String KEY = "trace_id";
+
+    private static final Random sRandom = new Random();
+
+    private TraceId() {
+    }
+
+    /**
+     * Returns a new random trace ID.
+     */
+    public static String generate() {
+        return Integer.toHexString(sRandom.nextInt()) + Integer.toHexString(sRandom.nextInt());
+    }
+}
@@ -23,8 +23,10 @@ import java.util.Date;
 import java.util.Iterator;
 
 public class Util {
+    public static final String DATE_FORMAT_ISO8601 = "yyyy-MM-dd'T'HH:mm:ssZ";
+
     private static SimpleDateFormat sDateFormatISO8601 = new SimpleDateFormat(
-            "yyyy-MM-dd'T'HH:mm:ssZ");
+            DATE_FORMAT_ISO8601);
 
     public static final String formatDateISO8601(Date d) {
         return sDateFormatISO8601.format(d);
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A minimal JSON-RPC client for the benchmark drivers, signed in as a test user of the App
+ * Engine development server through its login cookie.
+ */
+class BenchRpcClient {
+    private final URL mRpcUrl;
+
+    private final String mLoginCookie;
+
+    public BenchRpcClient(String rpcUrl, String email) throws IOException {
+        mRpcUrl = new URL(rpcUrl);
+        // The development server takes the user's email, admin flag and user ID from it.
+        mLoginCookie = "dev_appserver_login=" + email + ":false:"
+                + Math.abs((long) email.hashCode());
+    }
+
+    /**
+     * Performs a single call and returns its data.
+     *
+     * @throws IOException if the request failed or the call returned an error.
+     */
+    public JSONObject call(String method, JSONObject params) throws IOException {
+        try {
+            JSONObject callJson = (params.length() > 0)
+                    ? new JSONObject(params, JSONObject.getNames(params)) : new JSONObject();
+            callJson.put("method", method);
+            JSONObject requestJson = new JSONObject().put("calls",
+                    new JSONArray().put(callJson));
+
+            HttpURLConnection connection = (HttpURLConnection) mRpcUrl.openConnection();
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+            connection.setRequestProperty("Cookie", mLoginCookie);
+            OutputStream out = connection.getOutputStream();
+            out.write(requestJson.toString().getBytes("UTF-8"));
+            out.close();
+
+            if (connection.getResponseCode() != 200) {
+                throw new IOException("HTTP " + connection.getResponseCode() + " from " + method);
+            }
+            JSONObject responseJson = new JSONObject(readAll(connection.getInputStream()));
+            JSONObject resultJson = responseJson.getJSONArray("results").getJSONObject(0);
+            if (resultJson.has("error")) {
+                throw new IOException(method + " failed with " + resultJson.get("error") + ": "
+                        + resultJson.optString("message"));
+            }
+            return resultJson.optJSONObject("data");
+        } catch (JSONException e) {
+            IOException ioe = new IOException("Invalid JSON in " + method);
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the value at the given percentile of the sorted values.
+     */
+    static long percentile(long[] sortedValues, double percentile) {
+        if (sortedValues.length == 0)
+            return 0;
+        int index = (int) Math.ceil(percentile / 100 * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+    }
+}
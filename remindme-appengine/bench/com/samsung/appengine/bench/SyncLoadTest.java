@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.samsung.appengine.allshared.RemindMeProtocol;
+
+/**
+ * Load test for the RPC executor modes: many concurrent clients, each signed in as its own
+ * user, repeatedly running <code>alerts.sync</code> with a few edited alerts, the way
+ * devices sync after a push. Prints the sync throughput and latency percentiles.
+ *
+ * Run it against a self-hosted or development server once per <code>rpc_executor</code>
+ * mode (<code>inline</code>, <code>pool</code>, <code>virtual</code>) and compare:
+ * <pre>
+ * java -cp ... com.samsung.appengine.bench.SyncLoadTest http://localhost:8888/remindmerpc \
+ *     [clients=1000] [seconds=60] [alerts per sync=5]
+ * </pre>
+ */
+public class SyncLoadTest {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: SyncLoadTest rpc-url [clients] [seconds] [alerts]");
+            System.exit(1);
+        }
+        final String rpcUrl = args[0];
+        int numClients = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 60;
+        final int alertsPerSync = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] endMillis = new long[1];
+        final AtomicInteger numErrors = new AtomicInteger();
+        final List<long[]> latencies = new ArrayList<long[]>();
+        final int[] numSyncs = new int[numClients];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numClients; i++) {
+            final int client = i;
+            final long[] clientLatencies = new long[100000];
+            latencies.add(clientLatencies);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        BenchRpcClient rpc = new BenchRpcClient(rpcUrl,
+                                "load" + client + "@example.com");
+                        start.await();
+                        runClient(rpc, alertsPerSync, endMillis[0], clientLatencies,
+                                numSyncs, client, numErrors);
+                    } catch (Exception e) {
+                        numErrors.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        long startMillis = System.currentTimeMillis();
+        endMillis[0] = startMillis + seconds * 1000L;
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+
+        int total = 0;
+        for (int n : numSyncs) {
+            total += n;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (int i = 0; i < numClients; i++) {
+            System.arraycopy(latencies.get(i), 0, all, pos, numSyncs[i]);
+            pos += numSyncs[i];
+        }
+        Arrays.sort(all);
+
+        System.out.println(numClients + " clients, " + elapsedMillis + "ms, " + alertsPerSync
+                + " alerts per sync");
+        System.out.println(String.format("syncs: %d (%.1f/s), errors: %d", total,
+                total * 1000.0 / elapsedMillis, numErrors.get()));
+        System.out.println("latency ms: p50 " + BenchRpcClient.percentile(all, 50)
+                + ", p95 " + BenchRpcClient.percentile(all, 95)
+                + ", p99 " + BenchRpcClient.percentile(all, 99)
+                + ", max " + BenchRpcClient.percentile(all, 100));
+    }
+
+    /**
+     * Syncs until the end time: the first sync uploads the client's alerts, and each later
+     * one uploads edits to them and fetches what changed since the previous sync.
+     */
+    private static void runClient(BenchRpcClient rpc, int alertsPerSync, long endMillis,
+            long[] latencies, int[] numSyncs, int client, AtomicInteger numErrors)
+            throws JSONException {
+        String[] alertIds = new String[alertsPerSync];
+        long sinceSeq = 0;
+        int round = 0;
+        while (System.currentTimeMillis() < endMillis && numSyncs[client] < latencies.length) {
+            JSONArray localAlerts = new JSONArray();
+            for (int i = 0; i < alertsPerSync; i++) {
+                JSONObject alertJson = new JSONObject()
+                        .put("local_id", Integer.toString(i))
+                        .put("targetId", "target" + i)
+                        .put("body", "Load test alert " + i + ", round " + round);
+                if (alertIds[i] != null) {
+                    alertJson.put("id", alertIds[i]);
+                }
+                localAlerts.put(alertJson);
+            }
+            JSONObject params = new JSONObject()
+                    .put(RemindMeProtocol.AlertsSync.ARG_SINCE_SEQ, sinceSeq)
+                    .put(RemindMeProtocol.AlertsSync.ARG_LOCAL_ALERTS, localAlerts);
+
+            long callStart = System.nanoTime();
+            try {
+                JSONObject result = rpc.call(RemindMeProtocol.AlertsSync.METHOD, params);
+                latencies[numSyncs[client]++] = (System.nanoTime() - callStart) / 1000000;
+
+                sinceSeq = result.optLong(RemindMeProtocol.AlertsSync.RET_NEW_SINCE_SEQ,
+                        sinceSeq);
+                JSONArray alertsJson = result.getJSONArray(RemindMeProtocol.AlertsSync.RET_ALERTS);
+                for (int i = 0; i < alertsJson.length(); i++) {
+                    JSONObject alertJson = alertsJson.getJSONObject(i);
+                    String localId = alertJson.optString("local_id", null);
+                    if (localId != null) {
+                        alertIds[Integer.parseInt(localId)] = alertJson.getString("id");
+                    }
+                }
+            } catch (Exception e) {
+                numErrors.incrementAndGet();
+            }
+            round++;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.bench;
+
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.samsung.appengine.allshared.RemindMeProtocol;
+
+/**
+ * Measures the latency of an <code>alerts.sync</code> that uploads edits to many existing
+ * alerts at once, the case the batched existence check in <code>notesSync</code> is for.
+ * Creates the alerts in a first sync, then times the given number of rounds that each upload
+ * an edit to every one of them.
+ *
+ * Run it against builds from before and after the batched lookup and compare the medians:
+ * <pre>
+ * java -cp ... com.samsung.appengine.bench.SyncUploadBenchmark \
+ *     http://localhost:8888/remindmerpc [alerts=500] [rounds=20]
+ * </pre>
+ */
+public class SyncUploadBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: SyncUploadBenchmark rpc-url [alerts] [rounds]");
+            System.exit(1);
+        }
+        int numAlerts = (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+        int numRounds = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+        BenchRpcClient rpc = new BenchRpcClient(args[0],
+                "upload" + System.currentTimeMillis() + "@example.com");
+
+        String[] alertIds = new String[numAlerts];
+        JSONObject result = rpc.call(RemindMeProtocol.AlertsSync.METHOD,
+                makeSyncParams(alertIds, 0));
+        readAlertIds(result, alertIds);
+        for (int i = 0; i < numAlerts; i++) {
+            if (alertIds[i] == null) {
+                throw new IllegalStateException("Alert " + i + " was not created; "
+                        + "the first sync returned " + (result.optBoolean(
+                                RemindMeProtocol.AlertsSync.RET_MORE) ? "more" : "no id"));
+            }
+        }
+
+        long[] latencies = new long[numRounds];
+        for (int round = 0; round < numRounds; round++) {
+            JSONObject params = makeSyncParams(alertIds, round + 1);
+            long start = System.nanoTime();
+            result = rpc.call(RemindMeProtocol.AlertsSync.METHOD, params);
+            latencies[round] = (System.nanoTime() - start) / 1000000;
+            System.out.println("round " + round + ": " + latencies[round] + "ms"
+                    + (result.optBoolean(RemindMeProtocol.AlertsSync.RET_MORE) ? " (more)" : ""));
+        }
+
+        Arrays.sort(latencies);
+        System.out.println(numAlerts + " alerts: median "
+                + BenchRpcClient.percentile(latencies, 50) + "ms, min " + latencies[0]
+                + "ms, max " + latencies[numRounds - 1] + "ms");
+    }
+
+    /**
+     * Returns sync parameters uploading every alert, with its server ID once it has one.
+     */
+    private static JSONObject makeSyncParams(String[] alertIds, int round) throws Exception {
+        JSONArray localAlerts = new JSONArray();
+        for (int i = 0; i < alertIds.length; i++) {
+            JSONObject alertJson = new JSONObject()
+                    .put("local_id", Integer.toString(i))
+                    .put("targetId", "target" + i)
+                    .put("body", "Upload benchmark alert " + i + ", round " + round);
+            if (alertIds[i] != null) {
+                alertJson.put("id", alertIds[i]);
+            }
+            localAlerts.put(alertJson);
+        }
+        return new JSONObject()
+                .put(RemindMeProtocol.AlertsSync.ARG_SINCE_SEQ, 0)
+                .put(RemindMeProtocol.AlertsSync.ARG_LOCAL_ALERTS, localAlerts);
+    }
+
+    private static void readAlertIds(JSONObject result, String[] alertIds) throws Exception {
+        JSONArray alertsJson = result.getJSONArray(RemindMeProtocol.AlertsSync.RET_ALERTS);
+        for (int i = 0; i < alertsJson.length(); i++) {
+            JSONObject alertJson = alertsJson.getJSONObject(i);
+            String localId = alertJson.optString("local_id", null);
+            if (localId != null) {
+                alertIds[Integer.parseInt(localId)] = alertJson.getString("id");
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.jsonrpc.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.apphosting.api.ApiProxy;
+import com.samsung.appengine.allshared.JsonRpcException;
+import com.samsung.appengine.allshared.JsonRpcMethod;
+
+/**
+ * Compares the precompiled dispatch table of {@link JsonRpcServlet} with the dispatch it
+ * replaced, which looked the method up, read its annotation and invoked it with access
+ * checks on every call, over batches of 50 calls. Then times the same batches through
+ * {@link JsonRpcServlet#performCall}, which adds the deadline, admission, metrics and event
+ * logging around the dispatch, and whole 50-call batches through
+ * {@link JsonRpcServlet#doPost}, with requests and responses faked in memory.
+ *
+ * Run with the server classes, the App Engine API jar and the servlet API on the class path:
+ * <pre>
+ * java -cp ... com.samsung.appengine.jsonrpc.server.DispatchBenchmark [batches]
+ * </pre>
+ */
+public class DispatchBenchmark {
+    private static final int CALLS_PER_BATCH = 50;
+
+    private static final int DEFAULT_BATCHES = 20000;
+
+    private static final int WARMUP_BATCHES = 5000;
+
+    /**
+     * A servlet with a single trivial method, so that the benchmark measures dispatch rather
+     * than the work done by the call.
+     */
+    public static class BenchServlet extends JsonRpcServlet {
+        @JsonRpcMethod(method = "bench.echo")
+        public JSONObject echo(CallContext context) throws JSONException {
+            return new JSONObject().put("n", context.getParams().optInt("n"));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int batches = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_BATCHES;
+
+        ApiProxy.setEnvironmentForCurrentThread(new AnonymousEnvironment());
+        BenchServlet servlet = new BenchServlet();
+        servlet.init(fake(ServletConfig.class, new HashMap<String, Object>()));
+
+        // The dispatch table as it was: name to method, everything else resolved per call.
+        Map<String, Method> methods = new HashMap<String, Method>();
+        for (Method method : BenchServlet.class.getMethods()) {
+            JsonRpcMethod annotation = method.getAnnotation(JsonRpcMethod.class);
+            if (annotation != null) {
+                methods.put(annotation.method(), method);
+            }
+        }
+
+        JSONObject[] calls = new JSONObject[CALLS_PER_BATCH];
+        JsonRpcServlet.CallContext[] contexts = new JsonRpcServlet.CallContext[CALLS_PER_BATCH];
+        JSONArray callsJson = new JSONArray();
+        HttpServletRequest dispatchRequest = fakeRequest(new byte[0]);
+        for (int i = 0; i < CALLS_PER_BATCH; i++) {
+            calls[i] = new JSONObject().put("method", "bench.echo").put("n", i);
+            contexts[i] = servlet.new CallContext(dispatchRequest, calls[i]);
+            callsJson.put(calls[i]);
+        }
+        byte[] batchBody = new JSONObject().put("calls", callsJson).toString().getBytes("UTF-8");
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmup = round == 0;
+            int n = warmup ? WARMUP_BATCHES : batches;
+
+            long start = System.nanoTime();
+            for (int b = 0; b < n; b++) {
+                for (int i = 0; i < CALLS_PER_BATCH; i++) {
+                    invokeUncached(servlet, methods, calls[i].getString("method"), contexts[i]);
+                }
+            }
+            long uncachedNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int b = 0; b < n; b++) {
+                for (int i = 0; i < CALLS_PER_BATCH; i++) {
+                    invokeBound(servlet, calls[i].getString("method"), contexts[i]);
+                }
+            }
+            long tableNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int b = 0; b < n; b++) {
+                for (int i = 0; i < CALLS_PER_BATCH; i++) {
+                    servlet.performCall(contexts[i]);
+                }
+            }
+            long performNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int b = 0; b < n; b++) {
+                servlet.doPost(fakeRequest(batchBody), fakeResponse());
+            }
+            long batchNanos = System.nanoTime() - start;
+
+            if (!warmup) {
+                report("per-call lookup, annotation read and checked invoke", uncachedNanos, n);
+                report("precompiled dispatch table", tableNanos, n);
+                report("performCall, with checks, metrics and events", performNanos, n);
+                report("whole batch through doPost", batchNanos, n);
+            }
+        }
+    }
+
+    /**
+     * Dispatches a call the way the servlet did before the dispatch table was precompiled.
+     */
+    private static Object invokeUncached(JsonRpcServlet servlet, Map<String, Method> methods,
+            String methodName, JsonRpcServlet.CallContext context) throws Exception {
+        Method method = methods.get(methodName);
+        JsonRpcMethod annotation = method.getAnnotation(JsonRpcMethod.class);
+        if (annotation.requires_login() || annotation.requires_admin()) {
+            throw new JsonRpcException(403, "Not benchmarked.");
+        }
+        return method.invoke(servlet, context);
+    }
+
+    /**
+     * Dispatches a call through the precompiled dispatch table, with the same checks as
+     * {@link #invokeUncached}.
+     */
+    private static Object invokeBound(JsonRpcServlet servlet, String methodName,
+            JsonRpcServlet.CallContext context) throws Exception {
+        JsonRpcServlet.RpcMethodBinding binding = servlet.getMethodBinding(methodName);
+        if (binding.requiresLogin || binding.requiresAdmin) {
+            throw new JsonRpcException(403, "Not benchmarked.");
+        }
+        return binding.invoke(servlet, context);
+    }
+
+    private static void report(String label, long nanos, int batches) {
+        System.out.println(String.format("%-55s %8.2f us/batch  %6.0f ns/call", label,
+                nanos / 1000.0 / batches, (double) nanos / batches / CALLS_PER_BATCH));
+    }
+
+    private static HttpServletRequest fakeRequest(final byte[] body) {
+        Map<String, Object> answers = new HashMap<String, Object>();
+        answers.put("getServletPath", "/remindmerpc");
+        answers.put("getContentType", "application/json; charset=utf-8");
+        answers.put("getCharacterEncoding", "UTF-8");
+        answers.put("getRemoteAddr", "127.0.0.1");
+        answers.put("getMethod", "POST");
+        answers.put("getInputStream", new ServletInputStream() {
+            private final InputStream mIn = new ByteArrayInputStream(body);
+
+            @Override
+            public int read() throws IOException {
+                return mIn.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return mIn.read(b, off, len);
+            }
+        });
+        return fake(HttpServletRequest.class, answers);
+    }
+
+    private static HttpServletResponse fakeResponse() {
+        Map<String, Object> answers = new HashMap<String, Object>();
+        answers.put("getOutputStream", new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        return fake(HttpServletResponse.class, answers);
+    }
+
+    /**
+     * Returns an implementation of the given servlet interface that answers the named methods
+     * with the given values and every other method with null, false or zero.
+     */
+    private static <T> T fake(Class<T> type, final Map<String, Object> answers) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (answers.containsKey(method.getName()))
+                            return answers.get(method.getName());
+                        if (method.getName().equals("getServletContext"))
+                            return fake(ServletContext.class, new HashMap<String, Object>());
+                        Class<?> returnType = method.getReturnType();
+                        if (returnType == boolean.class)
+                            return false;
+                        if (returnType == int.class)
+                            return 0;
+                        if (returnType == long.class)
+                            return 0L;
+                        return null;
+                    }
+                }));
+    }
+
+    /**
+     * The API environment of a request from a signed-out user.
+     */
+    private static final class AnonymousEnvironment implements ApiProxy.Environment {
+        private final Map<String, Object> mAttributes = new HashMap<String, Object>();
+
+        public String getAppId() {
+            return "bench";
+        }
+
+        public String getVersionId() {
+            return "1";
+        }
+
+        public String getEmail() {
+            return null;
+        }
+
+        public boolean isLoggedIn() {
+            return false;
+        }
+
+        public boolean isAdmin() {
+            return false;
+        }
+
+        public String getAuthDomain() {
+            return "gmail.com";
+        }
+
+        public String getRequestNamespace() {
+            return "";
+        }
+
+        public Map<String, Object> getAttributes() {
+            return mAttributes;
+        }
+    }
+}
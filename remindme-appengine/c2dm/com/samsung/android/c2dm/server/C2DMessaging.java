@@ -50,6 +50,12 @@ public class C2DMessaging {
 
     private static final Logger log = Logger.getLogger(C2DMessaging.class.getName());
 
+    /**
+     * Timed send events, logged at FINE in the same "name duration_us=... key=value" format
+     * as the server's other <code>remindme.events</code> loggers.
+     */
+    private static final Logger events = Logger.getLogger("remindme.events.c2dm");
+
     public static final String PARAM_REGISTRATION_ID = "registration_id";
 
     public static final String PARAM_DELAY_WHILE_IDLE = "delay_while_idle";
@@ -91,6 +97,14 @@ public class C2DMessaging {
         return serverConfig;
     }
 
+    /**
+     * Loads the auth token ahead of the first send, so that it isn't read from the datastore
+     * while a user request waits.
+     */
+    public void preloadToken() {
+        serverConfig.getToken();
+    }
+
     /**
      * Initialize PMF - we use a context attribute, so other servlets can
      * be share the same instance. This is similar with a shared static 
@@ -141,6 +155,7 @@ public class C2DMessaging {
         byte[] postData = postDataBuilder.toString().getBytes(UTF8);
 
         // Hit the dm URL.
+        long startNanos = System.nanoTime();
         URL url = new URL(C2DM_SEND_ENDPOINT);
         
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
@@ -157,6 +172,10 @@ public class C2DMessaging {
         out.close();
         
         int responseCode = conn.getResponseCode();
+        if (events.isLoggable(Level.FINE)) {
+            events.fine("c2dm.send duration_us=" + (System.nanoTime() - startNanos) / 1000
+                    + " status=" + responseCode + " request_bytes=" + postData.length);
+        }
         
         if (responseCode == HttpServletResponse.SC_UNAUTHORIZED ||
                 responseCode == HttpServletResponse.SC_FORBIDDEN) {
@@ -237,6 +256,38 @@ public class C2DMessaging {
         }
     }
 
+    /**
+     * Helper method to send a message with any number of parameters, each sent as a
+     * <code>data.</code> field. Errors are handled as in the 2 parameter version; retries
+     * carry all of the parameters.
+     */
+    public void sendWithRetry(String token, String collapseKey, Map<String, String> data)
+            throws IOException {
+
+        Map<String, String[]> params = toParams(data);
+
+        boolean sentOk = sendNoRetry(token, collapseKey, params, true);
+        if (!sentOk) {
+            retry(token, collapseKey, params, true);
+        }
+    }
+
+    /**
+     * Helper method to hand a message to the task queue instead of sending it right away, for
+     * callers that can't afford to wait for the C2DM endpoint.
+     */
+    public void sendLater(String token, String collapseKey, Map<String, String> data) {
+        retry(token, collapseKey, toParams(data), true);
+    }
+
+    private static Map<String, String[]> toParams(Map<String, String> data) {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            params.put("data." + entry.getKey(), new String[] {entry.getValue()});
+        }
+        return params;
+    }
+
     public boolean sendNoRetry(String token, String collapseKey, 
             String name1, String value1, String name2, String value2) 
                 throws IOException {
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.samsung.javashared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A compact binary encoding of JSON values, used as an alternative wire format for JSON-RPC
+ * envelopes. A message starts with {@link #MAGIC} and {@link #VERSION}, followed by a single
+ * value:
+ * <ul>
+ *   <li>each value starts with a one-byte tag;</li>
+ *   <li>integers are zigzag varints, doubles are 8 bytes big-endian;</li>
+ *   <li>strings are a varint byte length followed by UTF-8;</li>
+ *   <li>ISO 8601 strings under date keys (<code>date_*</code>, <code>*_date</code>) are sent
+ *     as zigzag varint epoch milliseconds;</li>
+ *   <li>arrays are a sequence of values closed by {@link #TAG_END};</li>
+ *   <li>objects are a sequence of key references and values closed by a zero key reference.
+ *     A key reference of 1 is followed by a new key, which is added to the message's key
+ *     dictionary; a reference of n &gt;= 2 repeats dictionary entry n - 2. The dictionary
+ *     is seeded with {@link #PRESET_KEYS}.</li>
+ * </ul>
+ * Containers are terminated rather than length-prefixed so that results can be streamed.
+ */
+public class BinaryJson {
+    public static final String CONTENT_TYPE = "application/x-remindme-binary";
+
+    public static final int VERSION = 1;
+
+    private static final byte[] MAGIC = { 'R', 'M', 'B' };
+
+    static final int TAG_END = 0;
+    static final int TAG_NULL = 1;
+    static final int TAG_FALSE = 2;
+    static final int TAG_TRUE = 3;
+    static final int TAG_INT = 4;
+    static final int TAG_DOUBLE = 5;
+    static final int TAG_STRING = 6;
+    static final int TAG_DATE = 7;
+    static final int TAG_ARRAY = 8;
+    static final int TAG_OBJECT = 9;
+
+    private static final int KEY_END = 0;
+    private static final int KEY_NEW = 1;
+    private static final int KEY_FIRST_INDEX = 2;
+
+    /**
+     * Keys every dictionary starts out with. Part of the format: never reorder or remove
+     * entries, and only append along with a {@link #VERSION} change.
+     */
+    private static final String[] PRESET_KEYS = {
+        "calls", "results", "method", "data", "error", "message", "validator", "not_modified",
+        "if_none_match", "retry_after", "id", "owner_id", "targetId", "body", "date_created",
+        "date_modified", "delete", "local_id", "alerts", "alert", "new_since_date"
+    };
+
+    /**
+     * Limits on untrusted input.
+     */
+    private static final int MAX_DICTIONARY_SIZE = 1024;
+    private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * The protocol's date format, as written by <code>Util.formatDateISO8601</code> on both
+     * sides.
+     */
+    private static final String DATE_FORMAT_ISO8601 = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+    private static SimpleDateFormat newDateFormat() {
+        return new SimpleDateFormat(DATE_FORMAT_ISO8601);
+    }
+
+    private static boolean isDateKey(String key) {
+        return key != null && (key.startsWith("date_") || key.endsWith("_date"));
+    }
+
+    /**
+     * Encodes a single value as a complete message.
+     */
+    public static byte[] toBytes(Object value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer writer = new Writer(out);
+        writer.value(value);
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a message. Values can be written whole with {@link #value(Object)}, or
+     * incrementally with {@link #beginObject()}, {@link #key(String)}, {@link #beginArray()}
+     * and {@link #end()}.
+     */
+    public static class Writer {
+        private final OutputStream mOut;
+        private final Map<String, Integer> mDictionary = new HashMap<String, Integer>();
+        private final SimpleDateFormat mDateFormat = newDateFormat();
+        private final byte[] mBuffer = new byte[8192];
+        private int mBufferLength;
+        private long mCount;
+        private String mKey;
+
+        public Writer(OutputStream out) throws IOException {
+            mOut = out;
+            for (String key : PRESET_KEYS) {
+                mDictionary.put(key, mDictionary.size());
+            }
+            writeBytes(MAGIC, 0, MAGIC.length);
+            writeByte(VERSION);
+        }
+
+        public Writer beginObject() throws IOException {
+            writeByte(TAG_OBJECT);
+            mKey = null;
+            return this;
+        }
+
+        public Writer beginArray() throws IOException {
+            writeByte(TAG_ARRAY);
+            mKey = null;
+            return this;
+        }
+
+        /**
+         * Closes the innermost object or array.
+         */
+        public Writer end() throws IOException {
+            writeByte(KEY_END); // Same as TAG_END.
+            return this;
+        }
+
+        public Writer key(String key) throws IOException {
+            Integer index = mDictionary.get(key);
+            if (index != null) {
+                writeVarint(index + KEY_FIRST_INDEX);
+            } else {
+                writeVarint(KEY_NEW);
+                writeString(key);
+                if (mDictionary.size() < MAX_DICTIONARY_SIZE)
+                    mDictionary.put(key, mDictionary.size());
+            }
+            mKey = key;
+            return this;
+        }
+
+        public Writer value(Object value) throws IOException {
+            String key = mKey;
+            mKey = null;
+
+            if (value == null || value == JSONObject.NULL) {
+                writeByte(TAG_NULL);
+            } else if (value instanceof Boolean) {
+                writeByte(((Boolean) value) ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                writeByte(TAG_INT);
+                writeVarint(zigzag(((Number) value).longValue()));
+            } else if (value instanceof Number) {
+                writeByte(TAG_DOUBLE);
+                long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    writeByte((int) (bits >>> shift));
+                }
+            } else if (value instanceof JSONObject) {
+                JSONObject object = (JSONObject) value;
+                beginObject();
+                @SuppressWarnings("unchecked")
+                Iterator<String> keys = object.keys();
+                while (keys.hasNext()) {
+                    String k = keys.next();
+                    key(k);
+                    value(object.opt(k));
+                }
+                end();
+            } else if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                beginArray();
+                for (int i = 0; i < array.length(); i++) {
+                    value(array.opt(i));
+                }
+                end();
+            } else {
+                String string = value.toString();
+                Date date = isDateKey(key) ? parseDate(string) : null;
+                if (date != null) {
+                    writeByte(TAG_DATE);
+                    writeVarint(zigzag(date.getTime()));
+                } else {
+                    writeByte(TAG_STRING);
+                    writeString(string);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Returns the number of bytes written so far.
+         */
+        public long getCount() {
+            return mCount + mBufferLength;
+        }
+
+        public void flush() throws IOException {
+            drain();
+            mOut.flush();
+        }
+
+        public void close() throws IOException {
+            drain();
+            mOut.close();
+        }
+
+        private Date parseDate(String string) {
+            ParsePosition position = new ParsePosition(0);
+            Date date = mDateFormat.parse(string, position);
+            // Only strings that are entirely a date, so nothing is lost in the round trip.
+            return (position.getIndex() == string.length()) ? date : null;
+        }
+
+        private void writeString(String string) throws IOException {
+            byte[] bytes = string.getBytes("UTF-8");
+            writeVarint(bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        private void writeByte(int b) throws IOException {
+            if (mBufferLength == mBuffer.length)
+                drain();
+            mBuffer[mBufferLength++] = (byte) b;
+        }
+
+        private void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+            if (length > mBuffer.length - mBufferLength) {
+                drain();
+                if (length > mBuffer.length) {
+                    mOut.write(bytes, offset, length);
+                    mCount += length;
+                    return;
+                }
+            }
+            System.arraycopy(bytes, offset, mBuffer, mBufferLength, length);
+            mBufferLength += length;
+        }
+
+        private void drain() throws IOException {
+            if (mBufferLength > 0) {
+                mOut.write(mBuffer, 0, mBufferLength);
+                mCount += mBufferLength;
+                mBufferLength = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads a message. Values can be read whole with {@link #readValue()}, or incrementally
+     * with {@link #beginObject()}, {@link #nextKey()}, {@link #beginArray()} and
+     * {@link #hasNext()}. Malformed input is reported as an {@link IOException}.
+     */
+    public static class Reader {
+        private final InputStream mIn;
+        private final List<String> mDictionary = new ArrayList<String>();
+        private final SimpleDateFormat mDateFormat = newDateFormat();
+        private long mCount;
+        private int mPeeked = -1;
+
+        public Reader(InputStream in) throws IOException {
+            mIn = in;
+            for (String key : PRESET_KEYS) {
+                mDictionary.add(key);
+            }
+            for (byte b : MAGIC) {
+                if (readByte() != b)
+                    throw new IOException("Not a binary JSON message.");
+            }
+            int version = readByte();
+            if (version != VERSION)
+                throw new IOException("Unsupported binary JSON version " + version + ".");
+        }
+
+        public void beginObject() throws IOException {
+            expect(TAG_OBJECT);
+        }
+
+        public void beginArray() throws IOException {
+            expect(TAG_ARRAY);
+        }
+
+        /**
+         * Returns the next key of the current object, or null (consuming the end of the
+         * object) once there are no more.
+         */
+        public String nextKey() throws IOException {
+            long ref = readVarint();
+            if (ref == KEY_END)
+                return null;
+            if (ref == KEY_NEW) {
+                String key = readString();
+                if (mDictionary.size() < MAX_DICTIONARY_SIZE)
+                    mDictionary.add(key);
+                return key;
+            }
+            long index = ref - KEY_FIRST_INDEX;
+            if (index >= mDictionary.size())
+                throw new IOException("Unknown key reference " + ref + ".");
+            return mDictionary.get((int) index);
+        }
+
+        /**
+         * Returns whether the current array has more values, consuming the end of the array
+         * if it doesn't.
+         */
+        public boolean hasNext() throws IOException {
+            if (peekByte() == TAG_END) {
+                mPeeked = -1;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns the next tag without consuming it.
+         */
+        public int peek() throws IOException {
+            return peekByte();
+        }
+
+        public Object readValue() throws IOException {
+            return readValue(0);
+        }
+
+        /**
+         * Returns the number of bytes read so far.
+         */
+        public long getCount() {
+            return mCount - (mPeeked >= 0 ? 1 : 0);
+        }
+
+        private Object readValue(int depth) throws IOException {
+            if (depth > MAX_DEPTH)
+                throw new IOException("Binary JSON nested too deeply.");
+
+            int tag = readByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return JSONObject.NULL;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_INT: {
+                    long value = unzigzag(readVarint());
+                    if (value == (int) value)
+                        return Integer.valueOf((int) value);
+                    return Long.valueOf(value);
+                }
+                case TAG_DOUBLE: {
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits = (bits << 8) | readByte();
+                    }
+                    return Double.longBitsToDouble(bits);
+                }
+                case TAG_STRING:
+                    return readString();
+                case TAG_DATE:
+                    return mDateFormat.format(new Date(unzigzag(readVarint())));
+                case TAG_ARRAY: {
+                    JSONArray array = new JSONArray();
+                    while (hasNext()) {
+                        array.put(readValue(depth + 1));
+                    }
+                    return array;
+                }
+                case TAG_OBJECT: {
+                    JSONObject object = new JSONObject();
+                    String key;
+                    try {
+                        while ((key = nextKey()) != null) {
+                            object.put(key, readValue(depth + 1));
+                        }
+                    } catch (JSONException e) {
+                        throw new IOException("Invalid binary JSON value: " + e.getMessage());
+                    }
+                    return object;
+                }
+                default:
+                    throw new IOException("Unknown binary JSON tag " + tag + ".");
+            }
+        }
+
+        private void expect(int tag) throws IOException {
+            int actual = readByte();
+            if (actual != tag)
+                throw new IOException("Expected binary JSON tag " + tag + ", got " + actual + ".");
+        }
+
+        private String readString() throws IOException {
+            long length = readVarint();
+            if (length > MAX_STRING_BYTES)
+                throw new IOException("Binary JSON string too long.");
+            byte[] bytes = new byte[(int) length];
+            int offset = 0;
+            if (bytes.length > 0 && mPeeked >= 0) {
+                bytes[offset++] = (byte) readByte();
+            }
+            while (offset < bytes.length) {
+                int read = mIn.read(bytes, offset, bytes.length - offset);
+                if (read < 0)
+                    throw new EOFException("Unexpected end of binary JSON message.");
+                offset += read;
+                mCount += read;
+            }
+            return new String(bytes, "UTF-8");
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Malformed binary JSON varint.");
+        }
+
+        private int peekByte() throws IOException {
+            if (mPeeked < 0)
+                mPeeked = readByte();
+            return mPeeked;
+        }
+
+        private int readByte() throws IOException {
+            if (mPeeked >= 0) {
+                int b = mPeeked;
+                mPeeked = -1;
+                return b;
+            }
+            int b = mIn.read();
+            if (b < 0)
+                throw new EOFException("Unexpected end of binary JSON message.");
+            mCount++;
+            return b;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -23,6 +23,13 @@ public interface JsonRpcClient {
 
     public void callBatch(List<Call> calls, BatchCallback callback);
 
+    /**
+     * Like {@link #callBatch(List, BatchCallback)}, but tags the batch with the given
+     * {@link TraceId} instead of a new one, so that it can be correlated with the change that
+     * caused it.
+     */
+    public void callBatch(List<Call> calls, String traceId, BatchCallback callback);
+
     public static interface Callback {
         public void onSuccess(Object data);
 
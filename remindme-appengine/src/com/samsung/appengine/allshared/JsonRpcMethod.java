@@ -24,4 +24,25 @@ public @interface JsonRpcMethod {
     public String method();
 
     public boolean requires_login() default false;
+
+    public boolean requires_admin() default false;
+
+    /**
+     * Marks a method that doesn't modify shared state, so that a run of such calls within one
+     * batch may be executed concurrently.
+     */
+    public boolean read_only() default false;
+
+    /**
+     * Marks a method that clients call in the background (e.g. during sync) rather than on
+     * behalf of a waiting user. Such calls are shed first when the server is overloaded.
+     */
+    public boolean background() default false;
+
+    /**
+     * Marks a method that parks its request until something changes (long polling). Such
+     * calls are admitted against their own small limit, so parked calls never take capacity
+     * from other calls.
+     */
+    public boolean long_poll() default false;
 }
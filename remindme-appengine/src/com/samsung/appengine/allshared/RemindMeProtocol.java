@@ -6,9 +6,55 @@ public final class RemindMeProtocol {
      */
     public static final String ARG_CLIENT_DEVICE_ID = "client_device_id";
 
+    /**
+     * For writes (<code>alerts.create</code>, <code>alerts.sync</code>, ...), a key unique to
+     * the operation. Retrying with the same key after a lost response returns the original
+     * result instead of applying the write again.
+     */
+    public static final String ARG_IDEMPOTENCY_KEY = "idempotency_key";
+
+    /**
+     * For reads, the validator of the result the client already has. If the result hasn't
+     * changed, the server answers <code>not_modified</code> instead of sending it again.
+     */
+    public static final String ARG_IF_NONE_MATCH = "if_none_match";
+
+    /**
+     * Request-level key with the client's time budget for the whole request, in milliseconds.
+     * The server gives up on calls it can't finish within it.
+     */
+    public static final String REQUEST_DEADLINE_MS = "deadline_ms";
+
+    /**
+     * Request-level key asking for pretty-printed JSON results.
+     */
+    public static final String REQUEST_PRETTY = "pretty";
+
     public static final class ServerInfo {
         public static final String METHOD = "server.info";
+
+        /**
+         * The highest protocol version the client speaks. Servers report the lower of it and
+         * their own, so clients that don't send it keep getting {@link #PROTOCOL_VERSION_JSON}.
+         */
+        public static final String ARG_PROTOCOL_VERSION = "protocol_version";
+
         public static final String RET_PROTOCOL_VERSION = "protocol_version";
+
+        /**
+         * The original protocol version, JSON only.
+         */
+        public static final int PROTOCOL_VERSION_JSON = 1;
+
+        /**
+         * The first protocol version whose servers accept and produce the binary wire format
+         * (<code>application/x-remindme-binary</code>) in addition to JSON.
+         */
+        public static final int PROTOCOL_VERSION_BINARY = 2;
+    }
+
+    public static final class ServerStats {
+        public static final String METHOD = "server.stats";
     }
 
     public static final class UserInfo {
@@ -21,7 +67,29 @@ public final class RemindMeProtocol {
 
     public static final class AlertsList {
         public static final String METHOD = "alerts.list";
+
+        /**
+         * Optional page size. Without it, all of the user's alerts are returned at once.
+         */
+        public static final String ARG_LIMIT = "limit";
+
+        /**
+         * Where to continue listing: the <code>next_cursor</code> of the previous page.
+         */
+        public static final String ARG_CURSOR = "cursor";
+
+        /**
+         * If true, alerts are listed without their bodies; use <code>alerts.get</code> to
+         * fetch a body when it is needed.
+         */
+        public static final String ARG_SUMMARY = "summary";
+
         public static final String RET_NOTES = "alerts";
+
+        /**
+         * Present when more alerts follow this page.
+         */
+        public static final String RET_NEXT_CURSOR = "next_cursor";
     }
 
     public static final class AlertsGet {
@@ -50,9 +118,58 @@ public final class RemindMeProtocol {
     public static final class AlertsSync {
         public static final String METHOD = "alerts.sync";
         public static final String ARG_SINCE_DATE = "since_date";
+
+        /**
+         * The <code>new_since_seq</code> of the previous sync. When given, exactly the alerts
+         * changed after it are returned, and <code>since_date</code> is not needed.
+         */
+        public static final String ARG_SINCE_SEQ = "since_seq";
+
         public static final String ARG_LOCAL_ALERTS = "local_alert";
         public static final String RET_ALERTS = "alerts";
         public static final String RET_NEW_SINCE_DATE = "new_since_date";
+
+        /**
+         * The user's change sequence number as of this sync, to send back as
+         * <code>since_seq</code>.
+         */
+        public static final String RET_NEW_SINCE_SEQ = "new_since_seq";
+
+        /**
+         * Set when the server ran out of time and only merged part of the changes. The
+         * returned alerts are valid, but the client should keep its sync state and sync again.
+         */
+        public static final String RET_MORE = "more";
+
+        /**
+         * Set when <code>since_date</code> or <code>since_seq</code> is older than the deleted
+         * alerts the server still keeps. The response then holds all of the user's alerts,
+         * and the client should drop any synced alert that isn't among them. Along with
+         * <code>more</code>, the response is partial and nothing may be dropped yet; the
+         * next sync, from the same state, resyncs fully again.
+         */
+        public static final String RET_FULL_RESYNC = "full_resync";
+    }
+
+    /**
+     * Long poll for clients without push messaging. Returns once any of the user's alerts has
+     * changed after <code>since_seq</code> or <code>since_date</code> (default: when the call
+     * started), or once <code>timeout</code> seconds have passed.
+     */
+    public static final class AlertsWatch {
+        public static final String METHOD = "alerts.watch";
+        public static final String ARG_SINCE_DATE = "since_date";
+
+        /**
+         * The <code>new_since_seq</code> of the previous watch. Preferred over
+         * <code>since_date</code>, which misses changes carrying an older device timestamp.
+         */
+        public static final String ARG_SINCE_SEQ = "since_seq";
+
+        public static final String ARG_TIMEOUT = "timeout";
+        public static final String RET_CHANGED = "changed";
+        public static final String RET_NEW_SINCE_DATE = "new_since_date";
+        public static final String RET_NEW_SINCE_SEQ = "new_since_seq";
     }
 
     public static final class DevicesRegister {
@@ -22,8 +22,11 @@ import com.google.gwt.event.dom.client.KeyCodes;
 import com.google.gwt.event.dom.client.KeyUpEvent;
 import com.google.gwt.event.dom.client.KeyUpHandler;
 import com.google.gwt.json.client.JSONArray;
+import com.google.gwt.json.client.JSONBoolean;
+import com.google.gwt.json.client.JSONNumber;
 import com.google.gwt.json.client.JSONObject;
 import com.google.gwt.json.client.JSONString;
+import com.google.gwt.json.client.JSONValue;
 import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.rpc.AsyncCallback;
@@ -43,12 +46,26 @@ import com.google.gwt.user.client.ui.VerticalPanel;
 public class Remindme_appengine implements EntryPoint {
 	
 private static final int TRANSIENT_MESSAGE_HIDE_DELAY = 5000;
+
+    /**
+     * How long to wait before watching for alert changes again after a failed watch.
+     */
+    private static final int WATCH_RETRY_DELAY = 30000;
+
+    /**
+     * Number of alerts fetched per <code>alerts.list</code> call.
+     */
+    private static final int ALERTS_PAGE_SIZE = 100;
     
     private final ScreenContainer mScreenContainer = new ScreenContainer();
     public static RootPanel sMessagePanel = null;
 
     public static String sLoginUrl = "";
     public static final JsonRpcGwtClient sJsonRpcClient = new JsonRpcGwtClient("/remindmerpc");
+    /**
+     * The user's alerts, as summaries without bodies; fetch a body with
+     * <code>alerts.get</code>.
+     */
     public static Map<String, ModelJso.Alert> sAlerts = new HashMap<String, ModelJso.Alert>();
     public static ModelJso.UserInfo sUserInfo = null;
 	/**
@@ -98,7 +115,7 @@ private static final int TRANSIENT_MESSAGE_HIDE_DELAY = 5000;
 
         final RootPanel loginPanel = RootPanel.get("loginPanel");
         calls.add(new Call(RemindMeProtocol.UserInfo.METHOD, userInfoParams));
-        calls.add(new Call(RemindMeProtocol.AlertsList.METHOD, null));
+        calls.add(new Call(RemindMeProtocol.AlertsList.METHOD, makeAlertsListParams(null)));
 
         sJsonRpcClient.callBatch(calls, new JsonRpcClient.BatchCallback() {
             public void onData(Object[] data) {
@@ -124,15 +141,13 @@ private static final int TRANSIENT_MESSAGE_HIDE_DELAY = 5000;
                     loginPanel.add(anchor);
                 }
 
-                // Process notesList RPC call results
+                // Process notesList RPC call results; the first page is enough to show the
+                // user something, the rest follows in the background.
                 JSONObject notesListJson = (JSONObject) data[1];
                 if (notesListJson != null) {
-                    JSONArray notesJson = notesListJson.get(RemindMeProtocol.AlertsList.RET_NOTES).isArray();
-                    for (int i = 0; i < notesJson.size(); i++) {
-                        ModelJso.Alert alert = (ModelJso.Alert) notesJson.get(i).isObject()
-                                .getJavaScriptObject();
-                        sAlerts.put(alert.getId(), alert);
-                    }
+                    sAlerts.clear();
+                    addAlerts(notesListJson);
+                    loadMoreAlerts(notesListJson, null, null);
                 }
 
                 callback.run();
@@ -149,6 +164,129 @@ private static final int TRANSIENT_MESSAGE_HIDE_DELAY = 5000;
         });
     }
 
+    private static JSONObject makeAlertsListParams(String cursor) {
+        JSONObject params = new JSONObject();
+        params.put(RemindMeProtocol.AlertsList.ARG_LIMIT, new JSONNumber(ALERTS_PAGE_SIZE));
+        params.put(RemindMeProtocol.AlertsList.ARG_SUMMARY, JSONBoolean.getInstance(true));
+        if (cursor != null) {
+            params.put(RemindMeProtocol.AlertsList.ARG_CURSOR, new JSONString(cursor));
+        }
+        return params;
+    }
+
+    private static void addAlerts(JSONObject notesListJson) {
+        JSONArray notesJson = notesListJson.get(RemindMeProtocol.AlertsList.RET_NOTES).isArray();
+        for (int i = 0; i < notesJson.size(); i++) {
+            ModelJso.Alert alert = (ModelJso.Alert) notesJson.get(i).isObject()
+                    .getJavaScriptObject();
+            sAlerts.put(alert.getId(), alert);
+        }
+    }
+
+    /**
+     * Fetches the pages of the alert list following the given one into {@link #sAlerts}, then
+     * runs the callback, if any. If a page fails, stops and runs the error callback instead, or
+     * shows the error if there is none.
+     */
+    private static void loadMoreAlerts(JSONObject notesListJson, final Runnable callback,
+            final Runnable errorCallback) {
+        JSONValue nextCursor = notesListJson.get(RemindMeProtocol.AlertsList.RET_NEXT_CURSOR);
+        if (nextCursor == null || nextCursor.isString() == null) {
+            if (callback != null)
+                callback.run();
+            return;
+        }
+
+        sJsonRpcClient.call(RemindMeProtocol.AlertsList.METHOD,
+                makeAlertsListParams(nextCursor.isString().stringValue()),
+                new JsonRpcClient.Callback() {
+            public void onSuccess(Object data) {
+                addAlerts((JSONObject) data);
+                loadMoreAlerts((JSONObject) data, callback, errorCallback);
+            }
+
+            public void onError(JsonRpcException caught) {
+                if (errorCallback != null) {
+                    errorCallback.run();
+                } else {
+                    showMessage("Error: " + caught.getMessage(), true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts keeping {@link #sAlerts} current by long polling <code>alerts.watch</code>. Each
+     * open watch holds a server request, so only screens that show the alerts should call
+     * this, and only against servers that enable the call.
+     */
+    public void startWatchingAlerts() {
+        watchAlerts(-1);
+    }
+
+    /**
+     * Keeps {@link #sAlerts} current by long polling <code>alerts.watch</code>, reloading the
+     * alert list whenever the server reports a change.
+     */
+    private void watchAlerts(final double sinceSeq) {
+        JSONObject params = new JSONObject();
+        if (sinceSeq >= 0) {
+            params.put(RemindMeProtocol.AlertsWatch.ARG_SINCE_SEQ, new JSONNumber(sinceSeq));
+        }
+
+        sJsonRpcClient.call(RemindMeProtocol.AlertsWatch.METHOD, params,
+                new JsonRpcClient.Callback() {
+            public void onSuccess(Object data) {
+                JSONObject watchJson = (JSONObject) data;
+                final double newSinceSeq = watchJson.get(
+                        RemindMeProtocol.AlertsWatch.RET_NEW_SINCE_SEQ).isNumber().doubleValue();
+                if (!watchJson.get(RemindMeProtocol.AlertsWatch.RET_CHANGED).isBoolean()
+                        .booleanValue()) {
+                    watchAlerts(newSinceSeq);
+                    return;
+                }
+
+                sJsonRpcClient.call(RemindMeProtocol.AlertsList.METHOD, makeAlertsListParams(null),
+                        new JsonRpcClient.Callback() {
+                    public void onSuccess(Object data) {
+                        sAlerts.clear();
+                        addAlerts((JSONObject) data);
+                        loadMoreAlerts((JSONObject) data, new Runnable() {
+                            public void run() {
+                                watchAlerts(newSinceSeq);
+                            }
+                        }, new Runnable() {
+                            public void run() {
+                                // Watching from the old sequence number reloads again.
+                                retryWatchAlerts(sinceSeq);
+                            }
+                        });
+                    }
+
+                    public void onError(JsonRpcException caught) {
+                        retryWatchAlerts(sinceSeq);
+                    }
+                });
+            }
+
+            public void onError(JsonRpcException caught) {
+                // The server doesn't offer watches; don't keep asking.
+                if (caught.getHttpCode() == 501)
+                    return;
+                retryWatchAlerts(sinceSeq);
+            }
+        });
+    }
+
+    private void retryWatchAlerts(final double sinceSeq) {
+        new Timer() {
+            @Override
+            public void run() {
+                watchAlerts(sinceSeq);
+            }
+        }.schedule(WATCH_RETRY_DELAY);
+    }
+
     public static void showMessage(String message, boolean isTransient) {
         if (sMessagePanel == null) {
             sMessagePanel = RootPanel.get("messagePanel");
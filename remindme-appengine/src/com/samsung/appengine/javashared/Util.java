@@ -23,15 +23,26 @@ import java.util.Date;
 import java.util.Iterator;
 
 public class Util {
-    private static SimpleDateFormat sDateFormatISO8601 = new SimpleDateFormat(
-            "yyyy-MM-dd'T'HH:mm:ssZ");
+    public static final String DATE_FORMAT_ISO8601 = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+    /**
+     * SimpleDateFormat isn't thread-safe, and the server formats dates on several threads at
+     * once, so each thread gets its own.
+     */
+    private static final ThreadLocal<SimpleDateFormat> sDateFormatISO8601 =
+            new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat(DATE_FORMAT_ISO8601);
+                }
+            };
 
     public static final String formatDateISO8601(Date d) {
-        return sDateFormatISO8601.format(d);
+        return sDateFormatISO8601.get().format(d);
     }
 
     public static final Date parseDateISO8601(String s) throws ParseException {
-        return sDateFormatISO8601.parse(s);
+        return sDateFormatISO8601.get().parse(s);
     }
 
     // http://snippets.dzone.com/posts/show/91
@@ -18,6 +18,8 @@ package com.samsung.appengine.jsonrpc.gwt;
 
 import com.samsung.appengine.allshared.JsonRpcClient;
 import com.samsung.appengine.allshared.JsonRpcException;
+import com.samsung.appengine.allshared.RemindMeProtocol;
+import com.samsung.appengine.allshared.TraceId;
 import com.google.gwt.http.client.Request;
 import com.google.gwt.http.client.RequestBuilder;
 import com.google.gwt.http.client.RequestCallback;
@@ -29,11 +31,31 @@ import com.google.gwt.json.client.JSONParser;
 import com.google.gwt.json.client.JSONString;
 
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class JsonRpcGwtClient implements JsonRpcClient {
+    /**
+     * Maximum number of results kept for conditional requests.
+     */
+    private static final int MAX_CACHED_RESULTS = 32;
+
     private final String mRpcUrl;
 
+    /**
+     * The last validated result of each call (keyed by method and params), so that repeated
+     * calls can send <code>if_none_match</code> and reuse the data on a
+     * <code>not_modified</code> result.
+     */
+    private final Map<String, CachedResult> mCachedResults =
+            new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                    return size() > MAX_CACHED_RESULTS;
+                }
+            };
+
     public JsonRpcGwtClient(String rpcUrl) {
         mRpcUrl = rpcUrl;
     }
@@ -54,10 +76,17 @@ public class JsonRpcGwtClient implements JsonRpcClient {
     }
 
     public void callBatch(final List<JsonRpcClient.Call> calls, final BatchCallback callback) {
+        callBatch(calls, TraceId.generate(), callback);
+    }
+
+    public void callBatch(final List<JsonRpcClient.Call> calls, String traceId,
+            final BatchCallback callback) {
         RequestBuilder builder = new RequestBuilder(RequestBuilder.POST, mRpcUrl);
 
         JSONObject requestJson = new JSONObject();
+        requestJson.put(TraceId.KEY, new JSONString(traceId));
         JSONArray callsJson = new JSONArray();
+        final String[] cacheKeys = new String[calls.size()];
         for (int i = 0; i < calls.size(); i++) {
             JsonRpcClient.Call call = calls.get(i);
 
@@ -71,6 +100,13 @@ public class JsonRpcGwtClient implements JsonRpcClient {
                 }
             }
 
+            cacheKeys[i] = callJson.toString();
+            CachedResult cachedResult = mCachedResults.get(cacheKeys[i]);
+            if (cachedResult != null) {
+                callJson.put(RemindMeProtocol.ARG_IF_NONE_MATCH,
+                        new JSONString(cachedResult.validator));
+            }
+
             callsJson.set(i, callJson);
         }
 
@@ -97,8 +133,16 @@ public class JsonRpcGwtClient implements JsonRpcClient {
                                         result.get("message").isString().stringValue(),
                                         null));
                                 resultData[i] = null;
+                            } else if (result.containsKey("not_modified")) {
+                                CachedResult cachedResult = mCachedResults.get(cacheKeys[i]);
+                                resultData[i] = (cachedResult != null) ? cachedResult.data : null;
                             } else {
                                 resultData[i] = result.get("data");
+                                if (result.containsKey("validator")) {
+                                    mCachedResults.put(cacheKeys[i], new CachedResult(
+                                            result.get("validator").isString().stringValue(),
+                                            resultData[i]));
+                                }
                             }
                         }
 
@@ -115,4 +159,14 @@ public class JsonRpcGwtClient implements JsonRpcClient {
             callback.onError(-1, new JsonRpcException(-1, e.getMessage()));
         }
     }
+
+    private static final class CachedResult {
+        final String validator;
+        final Object data;
+
+        CachedResult(String validator, Object data) {
+            this.validator = validator;
+            this.data = data;
+        }
+    }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.samsung.appengine.jsonrpc.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Decides whether a call may run now or should be shed with a retry-after hint. Two limits
+ * apply: a per-user token bucket, which keeps a single user's sync storm from starving
+ * everyone else, and a limit on concurrently running calls for the servlet instance.
+ *
+ * Calls come in three classes. Background calls (such as <code>alerts.sync</code>) may only
+ * use part of the concurrency limit and may not drain a user's bucket below a reserve, so
+ * interactive calls still get through while background work is being shed. Long polls (such
+ * as <code>alerts.watch</code>) mostly sit parked, so they are kept out of the concurrency
+ * limit altogether and are counted against a separate, smaller one.
+ */
+class AdmissionController {
+    public static final int CALL_INTERACTIVE = 0;
+    public static final int CALL_BACKGROUND = 1;
+    public static final int CALL_LONG_POLL = 2;
+
+    /**
+     * Maximum number of users whose token buckets are tracked; the least recently seen are
+     * forgotten first, which only ever makes the limit more lenient.
+     */
+    private static final int MAX_TRACKED_USERS = 1000;
+
+    private static final int INTERACTIVE_RETRY_AFTER_SECONDS = 1;
+
+    private static final int BACKGROUND_RETRY_AFTER_SECONDS = 5;
+
+    private final double mUserCallRate;
+
+    private final int mUserCallBurst;
+
+    private final Semaphore mCallPermits;
+
+    private final Semaphore mBackgroundCallPermits;
+
+    private final Semaphore mLongPollPermits;
+
+    private final Map<String, TokenBucket> mBuckets =
+            new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+                    return size() > MAX_TRACKED_USERS;
+                }
+            };
+
+    /**
+     * @param userCallRate the sustained number of calls per second allowed for each user, or
+     *     zero for no per-user limit.
+     * @param userCallBurst the number of calls a user may make in a burst.
+     * @param maxConcurrentCalls the maximum number of calls running at once, or zero for no
+     *     limit. Background calls may use up to three quarters of these. Long polls may
+     *     additionally park up to a quarter as many calls.
+     */
+    public AdmissionController(double userCallRate, int userCallBurst, int maxConcurrentCalls) {
+        mUserCallRate = userCallRate;
+        mUserCallBurst = Math.max(1, userCallBurst);
+        if (maxConcurrentCalls > 0) {
+            mCallPermits = new Semaphore(maxConcurrentCalls);
+            mBackgroundCallPermits = new Semaphore(Math.max(1, maxConcurrentCalls * 3 / 4));
+            mLongPollPermits = new Semaphore(Math.max(1, maxConcurrentCalls / 4));
+        } else {
+            mCallPermits = null;
+            mBackgroundCallPermits = null;
+            mLongPollPermits = null;
+        }
+    }
+
+    /**
+     * Tries to admit a call. Never blocks: on App Engine a request thread may be the only one
+     * its instance has, so an overloaded call is shed right away. If the call is admitted, the
+     * caller must call {@link #release} once it has finished.
+     *
+     * @param userKey identifies the caller for the per-user limit.
+     * @param callClass one of {@link #CALL_INTERACTIVE}, {@link #CALL_BACKGROUND} and
+     *     {@link #CALL_LONG_POLL}.
+     * @return zero if the call was admitted, otherwise the number of seconds after which the
+     *     caller should retry.
+     */
+    public int admit(String userKey, int callClass) {
+        return admit(userKey, callClass, false);
+    }
+
+    /**
+     * Like {@link #admit(String, int)}, but a streamed call may draw up to a burst ahead on
+     * the user's token bucket instead of being shed as soon as it is empty. The user's later
+     * calls pay the debt back, which slows a bulk client down without a mid-stream failure
+     * or a sleeping request thread.
+     */
+    public int admit(String userKey, int callClass, boolean streamed) {
+        // Permits first: a call shed for lack of one must not cost the user a token.
+        if (mCallPermits != null) {
+            int retryAfter = acquirePermit(callClass);
+            if (retryAfter > 0)
+                return retryAfter;
+        }
+
+        if (mUserCallRate > 0) {
+            TokenBucket bucket;
+            synchronized (mBuckets) {
+                bucket = mBuckets.get(userKey);
+                if (bucket == null) {
+                    bucket = new TokenBucket();
+                    mBuckets.put(userKey, bucket);
+                }
+            }
+            int floor = streamed ? -mUserCallBurst
+                    : (callClass != CALL_INTERACTIVE) ? mUserCallBurst / 2 : 0;
+            long waitMillis = bucket.take(floor);
+            if (waitMillis > 0) {
+                release(callClass);
+                return Math.max(1, (int) ((waitMillis + 999) / 1000));
+            }
+        }
+        return 0;
+    }
+
+    private int acquirePermit(int callClass) {
+        if (callClass == CALL_LONG_POLL) {
+            return mLongPollPermits.tryAcquire() ? 0 : BACKGROUND_RETRY_AFTER_SECONDS;
+        }
+
+        if (callClass == CALL_BACKGROUND) {
+            if (!mBackgroundCallPermits.tryAcquire())
+                return BACKGROUND_RETRY_AFTER_SECONDS;
+            if (!mCallPermits.tryAcquire()) {
+                mBackgroundCallPermits.release();
+                return BACKGROUND_RETRY_AFTER_SECONDS;
+            }
+            return 0;
+        }
+
+        return mCallPermits.tryAcquire() ? 0 : INTERACTIVE_RETRY_AFTER_SECONDS;
+    }
+
+    /**
+     * Releases the concurrency permit held by an admitted call.
+     */
+    public void release(int callClass) {
+        if (mCallPermits == null)
+            return;
+        if (callClass == CALL_LONG_POLL) {
+            mLongPollPermits.release();
+            return;
+        }
+        mCallPermits.release();
+        if (callClass == CALL_BACKGROUND)
+            mBackgroundCallPermits.release();
+    }
+
+    private final class TokenBucket {
+        private double mTokens = mUserCallBurst;
+
+        private long mLastRefillNanos = System.nanoTime();
+
+        /**
+         * Takes a token if at least <code>floor</code> tokens are left afterwards. A negative
+         * floor lets the bucket go into debt.
+         *
+         * @return zero if a token was taken, otherwise the number of milliseconds until one
+         *     will be.
+         */
+        synchronized long take(int floor) {
+            long now = System.nanoTime();
+            mTokens = Math.min(mUserCallBurst,
+                    mTokens + (now - mLastRefillNanos) * mUserCallRate / 1e9);
+            mLastRefillNanos = now;
+
+            if (mTokens >= floor + 1) {
+                mTokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((floor + 1 - mTokens) * 1000 / mUserCallRate));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.jsonrpc.server;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Runs each task with the App Engine API environment of the thread that submitted it. The
+ * App Engine services (users, datastore, URL fetch) find their request through a per-thread
+ * environment, which worker threads don't have. Tasks must finish while the submitting
+ * request is still running, since its environment is only valid until then.
+ */
+class ApiEnvironmentExecutor extends AbstractExecutorService {
+    private final ExecutorService mDelegate;
+
+    public ApiEnvironmentExecutor(ExecutorService delegate) {
+        mDelegate = delegate;
+    }
+
+    public void execute(final Runnable command) {
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        mDelegate.execute(new Runnable() {
+            public void run() {
+                // Tasks may also run on the submitting thread itself, whose environment must
+                // survive them.
+                ApiProxy.Environment previous = ApiProxy.getCurrentEnvironment();
+                if (environment != null) {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                }
+                try {
+                    command.run();
+                } finally {
+                    if (previous != null) {
+                        ApiProxy.setEnvironmentForCurrentThread(previous);
+                    } else {
+                        ApiProxy.clearEnvironmentForCurrentThread();
+                    }
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        mDelegate.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        return mDelegate.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return mDelegate.isShutdown();
+    }
+
+    public boolean isTerminated() {
+        return mDelegate.isTerminated();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mDelegate.awaitTermination(timeout, unit);
+    }
+}
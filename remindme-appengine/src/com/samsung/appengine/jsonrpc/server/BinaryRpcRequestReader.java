@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.samsung.appengine.jsonrpc.server;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.json.JSONObject;
+
+import com.samsung.appengine.allshared.JsonRpcException;
+import com.samsung.javashared.BinaryJson;
+
+/**
+ * Reads a request envelope sent in the {@link BinaryJson} wire format.
+ */
+class BinaryRpcRequestReader implements RpcRequestReader {
+    private final InputStream mIn;
+
+    private BinaryJson.Reader mReader;
+
+    private boolean mInCalls;
+
+    public BinaryRpcRequestReader(InputStream in) {
+        mIn = new BufferedInputStream(in);
+    }
+
+    public String nextKey() throws JsonRpcException {
+        try {
+            if (mReader == null) {
+                // Reads the message header.
+                mReader = new BinaryJson.Reader(mIn);
+                mReader.beginObject();
+            }
+            return mReader.nextKey();
+        } catch (IOException e) {
+            throw parseError(e);
+        }
+    }
+
+    public Object nextValue() throws JsonRpcException {
+        try {
+            return mReader.readValue();
+        } catch (IOException e) {
+            throw parseError(e);
+        }
+    }
+
+    public JSONObject nextCall() throws JsonRpcException {
+        try {
+            if (!mInCalls) {
+                mReader.beginArray();
+                mInCalls = true;
+            }
+            if (!mReader.hasNext()) {
+                mInCalls = false;
+                return null;
+            }
+            Object value = mReader.readValue();
+            if (!(value instanceof JSONObject)) {
+                throw new IOException("Each call must be a JSONObject");
+            }
+            return (JSONObject) value;
+        } catch (IOException e) {
+            throw parseError(e);
+        }
+    }
+
+    public long getCount() {
+        return (mReader != null) ? mReader.getCount() : 0;
+    }
+
+    private static JsonRpcException parseError(IOException e) {
+        return new JsonRpcException(400, "Error parsing request object: " + e.getMessage(), e);
+    }
+}
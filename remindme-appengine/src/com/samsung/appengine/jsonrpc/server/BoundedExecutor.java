@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.jsonrpc.server;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of tasks running at once on an executor that doesn't bound itself, such
+ * as one starting a virtual thread per task. Submitting blocks while the limit is reached,
+ * which pushes back on the request threads instead of piling up work for the backends.
+ */
+class BoundedExecutor extends AbstractExecutorService {
+    private final ExecutorService mDelegate;
+
+    private final Semaphore mPermits;
+
+    public BoundedExecutor(ExecutorService delegate, int maxConcurrentTasks) {
+        mDelegate = delegate;
+        mPermits = new Semaphore(maxConcurrentTasks);
+    }
+
+    public void execute(final Runnable command) {
+        mPermits.acquireUninterruptibly();
+        try {
+            mDelegate.execute(new Runnable() {
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        mPermits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            mPermits.release();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        mDelegate.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        return mDelegate.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return mDelegate.isShutdown();
+    }
+
+    public boolean isTerminated() {
+        return mDelegate.isTerminated();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mDelegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.jsonrpc.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An output stream for response bodies that holds back the first bytes written to it, and only
+ * switches to a compressed encoding once the body grows past a threshold. Small responses are
+ * therefore sent as-is, without paying for the compression header overhead; the
+ * <code>Content-Encoding</code> header is set on the response at the moment of switching, which
+ * is always before anything has been committed.
+ */
+class CompressingOutputStream extends OutputStream {
+    public static final String ENCODING_GZIP = "gzip";
+    public static final String ENCODING_DEFLATE = "deflate";
+
+    private final HttpServletResponse mResponse;
+    private final String mEncoding;
+    private final int mThreshold;
+
+    private ByteArrayOutputStream mBuffer;
+    private OutputStream mOut;
+
+    /**
+     * @param encoding the content coding to switch to, either {@link #ENCODING_GZIP} or
+     *     {@link #ENCODING_DEFLATE}.
+     */
+    public CompressingOutputStream(HttpServletResponse response, String encoding,
+            int threshold) {
+        mResponse = response;
+        mEncoding = encoding;
+        mThreshold = threshold;
+        mBuffer = new ByteArrayOutputStream(Math.min(threshold, 8 * 1024));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        if (mOut == null) {
+            if (mBuffer.size() + len <= mThreshold) {
+                mBuffer.write(buf, off, len);
+                return;
+            }
+            startCompressing();
+        }
+        mOut.write(buf, off, len);
+    }
+
+    /**
+     * Flushes only once compression has started; until then, the buffered bytes are kept back
+     * so that the decision to compress can still be made.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (mOut != null)
+            mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mOut == null) {
+            OutputStream out = mResponse.getOutputStream();
+            mBuffer.writeTo(out);
+            mBuffer = null;
+            out.close();
+        } else {
+            mOut.close();
+        }
+    }
+
+    private void startCompressing() throws IOException {
+        mResponse.setHeader("Content-Encoding", mEncoding);
+        OutputStream out = mResponse.getOutputStream();
+        mOut = ENCODING_GZIP.equals(mEncoding)
+                ? new GZIPOutputStream(out)
+                : new DeflaterOutputStream(out);
+        mBuffer.writeTo(mOut);
+        mBuffer = null;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.jsonrpc.server;
+
+import java.io.BufferedReader;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A {@link Reader} that counts the characters read through it. It supports marking (by way of
+ * an underlying {@link BufferedReader}) so that consumers like {@link org.json.JSONTokener}
+ * don't add their own read-ahead buffer, which keeps the count exact at any point.
+ */
+class CountingReader extends FilterReader {
+    private long mCount;
+
+    public CountingReader(Reader in) {
+        super(in.markSupported() ? in : new BufferedReader(in));
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int c = super.read();
+        if (c >= 0)
+            mCount++;
+        return c;
+    }
+
+    @Override
+    public int read(char[] buf, int off, int len) throws IOException {
+        int n = super.read(buf, off, len);
+        if (n > 0)
+            mCount += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        mCount += skipped;
+        return skipped;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.jsonrpc.server;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A {@link Writer} that counts the characters written through it.
+ */
+class CountingWriter extends FilterWriter {
+    private long mCount;
+
+    public CountingWriter(Writer out) {
+        super(out);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        super.write(c);
+        mCount++;
+    }
+
+    @Override
+    public void write(char[] buf, int off, int len) throws IOException {
+        super.write(buf, off, len);
+        mCount += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        super.write(str, off, len);
+        mCount += len;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.jsonrpc.server;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+
+/**
+ * Timed, structured events for the server's hot paths (RPC calls, datastore operations,
+ * reconciliation, push sends), written as single <code>name duration_us=... key=value</code>
+ * log lines under the {@link #LOGGER_PREFIX} loggers. App Engine groups log lines by request,
+ * so one request's events can be read together, and the fixed format can be grepped out of
+ * downloaded logs. Events are only built when their logger is enabled for {@link Level#FINE};
+ * otherwise {@link #begin} returns a shared no-op event.
+ */
+public final class EventLog {
+    public static final String LOGGER_PREFIX = "remindme.events.";
+
+    private static final Event DISABLED = new Event(null, null);
+
+    private final Logger mLogger;
+
+    private EventLog(Logger logger) {
+        mLogger = logger;
+    }
+
+    /**
+     * Returns the event log for the given category, such as <code>rpc</code> or
+     * <code>datastore</code>.
+     */
+    public static EventLog get(String category) {
+        return new EventLog(Logger.getLogger(LOGGER_PREFIX + category));
+    }
+
+    public boolean isEnabled() {
+        return mLogger.isLoggable(Level.FINE);
+    }
+
+    /**
+     * Starts timing an event. Call {@link Event#end} when the operation completes.
+     */
+    public Event begin(String name) {
+        return isEnabled() ? new Event(mLogger, name) : DISABLED;
+    }
+
+    public static final class Event {
+        private final Logger mLogger;
+
+        private final String mName;
+
+        private final StringBuilder mFields;
+
+        private final long mStartNanos;
+
+        private Event(Logger logger, String name) {
+            mLogger = logger;
+            mName = name;
+            mFields = (logger != null) ? new StringBuilder() : null;
+            mStartNanos = (logger != null) ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Whether this event will be written. Fields that are expensive to compute should only
+         * be computed when it is.
+         */
+        public boolean isEnabled() {
+            return mLogger != null;
+        }
+
+        public Event put(String key, Object value) {
+            if (mLogger != null) {
+                String valueString = String.valueOf(value);
+                mFields.append(' ').append(key).append('=');
+                if (valueString.length() == 0 || valueString.indexOf(' ') >= 0
+                        || valueString.indexOf('"') >= 0 || valueString.indexOf('=') >= 0) {
+                    mFields.append(JSONObject.quote(valueString));
+                } else {
+                    mFields.append(valueString);
+                }
+            }
+            return this;
+        }
+
+        public void end() {
+            if (mLogger != null) {
+                long durationMicros = (System.nanoTime() - mStartNanos) / 1000;
+                mLogger.fine(mName + " duration_us=" + durationMicros + mFields);
+            }
+        }
+    }
+
+    /**
+     * Returns a short, stable stand-in for a user identifier, so events can be correlated per
+     * user without logging who the user is.
+     */
+    public static String hashUser(String userKey) {
+        return (userKey != null) ? Integer.toHexString(userKey.hashCode()) : null;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.jsonrpc.server;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import com.samsung.appengine.allshared.JsonRpcException;
+
+/**
+ * Remembers the results of recent calls that carried an <code>idempotency_key</code>, so that
+ * a client retrying after a lost response gets the original result back instead of
+ * performing the call a second time. Results are kept in memcache as compact JSON text, so
+ * they are shared by all instances and expire after a fixed time, or sooner under memory
+ * pressure.
+ *
+ * While a call is running its key holds a short-lived pending marker; a duplicate arriving
+ * meanwhile is refused with a 409 and a retry-after hint rather than run concurrently.
+ * Memcache failures are logged and treated as misses: the call then runs unprotected, which
+ * is no worse than not sending a key at all.
+ */
+class IdempotencyCache {
+    private static final Logger log = Logger.getLogger(IdempotencyCache.class.getName());
+
+    private static final String KEY_PREFIX = "idem:";
+
+    /**
+     * Marker stored while the call for a key is running. Results are JSON objects, so they
+     * can never be empty.
+     */
+    private static final String PENDING = "";
+
+    /**
+     * How long a pending marker lives: long enough to outlast any request, short enough that
+     * a crashed instance doesn't block retries for long.
+     */
+    private static final int PENDING_TTL_SECONDS = 60;
+
+    private static final int RETRY_AFTER_SECONDS = 2;
+
+    /**
+     * Longest idempotency key accepted; memcache keys are limited to 250 bytes.
+     */
+    static final int MAX_KEY_LENGTH = 64;
+
+    /**
+     * Results larger than this are not remembered; memcache values are limited to 1MB.
+     */
+    private static final int MAX_RESULT_CHARS = 256 * 1024;
+
+    private final MemcacheService mMemcache = MemcacheServiceFactory.getMemcacheService();
+
+    private final int mTtlSeconds;
+
+    public IdempotencyCache(int ttlSeconds) {
+        mTtlSeconds = ttlSeconds;
+    }
+
+    /**
+     * Marks the given key as pending, or returns the result remembered for it. A null return
+     * means the caller should perform the call and then {@link #complete} or {@link #abandon}
+     * the key.
+     *
+     * @throws JsonRpcException if a call with the same key is still running.
+     */
+    public String begin(String key) throws JsonRpcException {
+        try {
+            if (mMemcache.put(key, PENDING, Expiration.byDeltaSeconds(PENDING_TTL_SECONDS),
+                    MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+                return null;
+            }
+
+            Object cached = mMemcache.get(key);
+            if (PENDING.equals(cached)) {
+                JsonRpcException e = new JsonRpcException(409,
+                        "A call with this idempotency_key is still in progress.");
+                e.setRetryAfterSeconds(RETRY_AFTER_SECONDS);
+                throw e;
+            }
+            return (cached instanceof String) ? (String) cached : null;
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Idempotency cache unavailable", e);
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the result of the call for the given key.
+     */
+    public void complete(String key, String resultJson) {
+        try {
+            if (resultJson.length() > MAX_RESULT_CHARS) {
+                // Too large to remember; let a retry perform the call again.
+                mMemcache.delete(key);
+                return;
+            }
+            mMemcache.put(key, resultJson, Expiration.byDeltaSeconds(mTtlSeconds));
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Idempotency cache unavailable", e);
+        }
+    }
+
+    /**
+     * Clears the pending marker of a call that failed, so that it can be retried.
+     */
+    public void abandon(String key) {
+        try {
+            mMemcache.delete(key);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Idempotency cache unavailable", e);
+        }
+    }
+
+    /**
+     * Returns the cache key for a call by the given user, to the given method, with the given
+     * client-supplied idempotency key.
+     */
+    public static String makeKey(String userKey, String methodName, String idempotencyKey) {
+        return KEY_PREFIX + userKey + ':' + methodName + ':' + idempotencyKey;
+    }
+}
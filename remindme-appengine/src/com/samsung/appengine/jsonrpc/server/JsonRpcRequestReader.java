@@ -0,0 +1,165 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.jsonrpc.server;
+
+import java.io.Reader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.samsung.appengine.allshared.JsonRpcException;
+
+/**
+ * Reads a JSON-RPC request envelope incrementally, so that the entries of its
+ * <code>calls</code> array can be parsed and measured one at a time instead of materializing
+ * the whole request as a {@link JSONObject} tree.
+ */
+class JsonRpcRequestReader implements RpcRequestReader {
+    private static final int STATE_INITIAL = 0;
+    private static final int STATE_IN_ENVELOPE = 1;
+    private static final int STATE_IN_CALLS = 2;
+    private static final int STATE_DONE = 3;
+
+    private final CountingReader mCounter;
+
+    private final JSONTokener mTokener;
+
+    private int mState = STATE_INITIAL;
+
+    private boolean mFirstCall;
+
+    public JsonRpcRequestReader(Reader reader) {
+        mCounter = new CountingReader(reader);
+        mTokener = new JSONTokener(mCounter);
+    }
+
+    public String nextKey() throws JsonRpcException {
+        try {
+            char c;
+            switch (mState) {
+                case STATE_DONE:
+                    return null;
+
+                case STATE_INITIAL:
+                    if (mTokener.nextClean() != '{') {
+                        throw mTokener.syntaxError("A JSONObject text must begin with '{'");
+                    }
+                    mState = STATE_IN_ENVELOPE;
+                    c = mTokener.nextClean();
+                    break;
+
+                default:
+                    // Pairs are separated by ','. We will also tolerate ';'.
+                    switch (mTokener.nextClean()) {
+                        case ';':
+                        case ',':
+                            c = mTokener.nextClean();
+                            break;
+                        case '}':
+                            mState = STATE_DONE;
+                            return null;
+                        default:
+                            throw mTokener.syntaxError("Expected a ',' or '}'");
+                    }
+            }
+
+            switch (c) {
+                case 0:
+                    throw mTokener.syntaxError("A JSONObject text must end with '}'");
+                case '}':
+                    mState = STATE_DONE;
+                    return null;
+                default:
+                    mTokener.back();
+            }
+
+            String key = mTokener.nextValue().toString();
+
+            // The key is followed by ':'. We will also tolerate '=' or '=>'.
+            c = mTokener.nextClean();
+            if (c == '=') {
+                if (mTokener.next() != '>') {
+                    mTokener.back();
+                }
+            } else if (c != ':') {
+                throw mTokener.syntaxError("Expected a ':' after a key");
+            }
+            return key;
+        } catch (JSONException e) {
+            throw parseError(e);
+        }
+    }
+
+    public Object nextValue() throws JsonRpcException {
+        try {
+            return mTokener.nextValue();
+        } catch (JSONException e) {
+            throw parseError(e);
+        }
+    }
+
+    public JSONObject nextCall() throws JsonRpcException {
+        try {
+            if (mState != STATE_IN_CALLS) {
+                if (mTokener.nextClean() != '[') {
+                    throw mTokener.syntaxError("A JSONArray text must start with '['");
+                }
+                mState = STATE_IN_CALLS;
+                mFirstCall = true;
+            }
+
+            char c = mTokener.nextClean();
+            if (!mFirstCall) {
+                switch (c) {
+                    case ';':
+                    case ',':
+                        c = mTokener.nextClean();
+                        break;
+                    case ']':
+                        mState = STATE_IN_ENVELOPE;
+                        return null;
+                    default:
+                        throw mTokener.syntaxError("Expected a ',' or ']'");
+                }
+            }
+
+            mFirstCall = false;
+            if (c == ']') {
+                mState = STATE_IN_ENVELOPE;
+                return null;
+            }
+
+            mTokener.back();
+            Object value = mTokener.nextValue();
+            if (!(value instanceof JSONObject)) {
+                throw mTokener.syntaxError("Each call must be a JSONObject");
+            }
+            return (JSONObject) value;
+        } catch (JSONException e) {
+            throw parseError(e);
+        }
+    }
+
+    public long getCount() {
+        return mCounter.getCount();
+    }
+
+    private static JsonRpcException parseError(JSONException e) {
+        return new JsonRpcException(400, "Error parsing request object: " + e.getMessage(), e);
+    }
+}
@@ -16,17 +16,42 @@
 
 package com.samsung.appengine.jsonrpc.server;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.jdo.JDOHelper;
 import javax.jdo.PersistenceManager;
 import javax.jdo.PersistenceManagerFactory;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -35,10 +60,15 @@ import javax.servlet.http.HttpServletResponse;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
+import org.json.JSONString;
+import org.json.JSONWriter;
 
 import com.samsung.appengine.allshared.JsonRpcException;
 import com.samsung.appengine.allshared.JsonRpcMethod;
+import com.samsung.appengine.allshared.RemindMeProtocol;
+import com.samsung.appengine.allshared.TraceId;
+import com.samsung.javashared.BinaryJson;
+import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 
@@ -51,155 +81,990 @@ import com.google.appengine.api.users.UserServiceFactory;
 public class JsonRpcServlet extends HttpServlet {
     private static final Logger log = Logger.getLogger(JsonRpcServlet.class.getName());
 
+    private static final EventLog events = EventLog.get("rpc");
+
+    /**
+     * Servlet init parameter giving the number of worker threads used to run consecutive
+     * read-only calls of a batch concurrently. Zero (the default) runs every call on the
+     * request thread, which is required on App Engine where requests can't spawn threads.
+     * With the <code>virtual</code> executor, this is the number of calls allowed to run at
+     * once instead.
+     */
+    public static final String INIT_PARAM_RPC_THREADS = "rpc_threads";
+
+    /**
+     * Servlet init parameter choosing how concurrent work (read-only calls and outbound push
+     * sends) is run: <code>inline</code> on the request thread, on a <code>pool</code> of
+     * <code>rpc_threads</code> platform threads, or on <code>virtual</code> threads, which
+     * needs a JVM that has them. Defaults to <code>pool</code> when <code>rpc_threads</code>
+     * is set, and <code>inline</code> otherwise.
+     */
+    public static final String INIT_PARAM_RPC_EXECUTOR = "rpc_executor";
+
+    public static final String RPC_EXECUTOR_INLINE = "inline";
+
+    public static final String RPC_EXECUTOR_POOL = "pool";
+
+    public static final String RPC_EXECUTOR_VIRTUAL = "virtual";
+
+    /**
+     * Servlet init parameter giving the response size, in bytes, above which responses are
+     * compressed for clients that accept it. A negative value disables response compression.
+     */
+    public static final String INIT_PARAM_COMPRESSION_THRESHOLD = "compression_threshold";
+
+    /**
+     * Servlet init parameter giving the sustained number of calls per second allowed for each
+     * user; zero (the default) disables the per-user limit.
+     */
+    public static final String INIT_PARAM_USER_CALL_RATE = "user_call_rate";
+
+    /**
+     * Servlet init parameter giving the number of calls a user may make in a burst.
+     */
+    public static final String INIT_PARAM_USER_CALL_BURST = "user_call_burst";
+
+    /**
+     * Servlet init parameter giving the maximum number of calls this servlet instance runs at
+     * once; zero (the default) disables the limit.
+     */
+    public static final String INIT_PARAM_MAX_CONCURRENT_CALLS = "max_concurrent_calls";
+
+    /**
+     * Servlet init parameter giving the time, in milliseconds, a request may take before its
+     * remaining calls are refused. It should leave room for writing the response before the
+     * platform's hard request deadline.
+     */
+    public static final String INIT_PARAM_REQUEST_BUDGET = "request_budget_ms";
+
+    /**
+     * Servlet init parameter giving how long, in seconds, the results of calls sent with an
+     * <code>idempotency_key</code> are remembered for replays.
+     */
+    public static final String INIT_PARAM_IDEMPOTENCY_TTL = "idempotency_ttl_seconds";
+
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    private static final double DEFAULT_USER_CALL_RATE = 0;
+
+    private static final int DEFAULT_USER_CALL_BURST = 20;
+
+    private static final int DEFAULT_MAX_CONCURRENT_CALLS = 0;
+
+    /**
+     * App Engine aborts requests after 30 seconds.
+     */
+    private static final long DEFAULT_REQUEST_BUDGET_MILLIS = 25000;
+
+    private static final int DEFAULT_IDEMPOTENCY_TTL_SECONDS = 3600;
+
+    private static final int RPC_QUEUE_CAPACITY = 64;
+
+    /**
+     * Default limit on calls running at once on virtual threads. They are cheap to block, but
+     * the datastore and the push service behind them are not.
+     */
+    private static final int DEFAULT_MAX_VIRTUAL_CALLS = 256;
+
+    /**
+     * Requests to a servlet path ending in this are handled as newline-delimited call streams;
+     * see {@link #doPostNdjson}.
+     */
+    public static final String NDJSON_PATH_SUFFIX = "/ndjson";
+
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
     private static PersistenceManagerFactory pmfInstance;
 
-    private Map<String, Method> mMethods = new HashMap<String, Method>();
+    private ExecutorService mExecutor;
+
+    private int mCompressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    private long mRequestBudgetMillis = DEFAULT_REQUEST_BUDGET_MILLIS;
+
+    private final RpcStats mStats = new RpcStats();
+
+    private IdempotencyCache mIdempotencyCache =
+            new IdempotencyCache(DEFAULT_IDEMPOTENCY_TTL_SECONDS);
+
+    private AdmissionController mAdmission = new AdmissionController(DEFAULT_USER_CALL_RATE,
+            DEFAULT_USER_CALL_BURST, DEFAULT_MAX_CONCURRENT_CALLS);
+
+    /**
+     * Read-only calls currently being performed, keyed by {@link #getFlightKey}. Identical calls
+     * arriving while one is in flight wait for it and share its outcome instead of querying the
+     * datastore again. Only calls on the same instance are merged, and only when they run
+     * concurrently, which needs a threadsafe runtime or the <code>pool</code> executor.
+     */
+    private final ConcurrentMap<String, InFlightCall> mInFlightCalls =
+            new ConcurrentHashMap<String, InFlightCall>();
+
+    /**
+     * The dispatch table, built once per servlet instance. Annotation metadata is resolved here
+     * so that individual calls only pay for a single map lookup and the reflective invoke.
+     */
+    private Map<String, RpcMethodBinding> mMethods = new HashMap<String, RpcMethodBinding>();
 
     public JsonRpcServlet() {
         for (Method method : getClass().getMethods()) {
             JsonRpcMethod rpcMethodAnnotation = method.getAnnotation(JsonRpcMethod.class);
             if (rpcMethodAnnotation != null) {
-                mMethods.put(rpcMethodAnnotation.method(), method);
+                mMethods.put(rpcMethodAnnotation.method(),
+                        new RpcMethodBinding(method, rpcMethodAnnotation));
             }
         }
     }
 
     public void init() {
-        /**
-         * Initialize PMF - we use a context attribute, so other servlets can
-         * be share the same instance. This is similar with a shared static 
-         * field, but avoids dependencies.
-         */
-        pmfInstance = 
-            (PersistenceManagerFactory) getServletContext().getAttribute(
+        String rpcThreads = getInitParameter(INIT_PARAM_RPC_THREADS);
+        int numThreads = (rpcThreads != null) ? Integer.parseInt(rpcThreads.trim()) : 0;
+        String rpcExecutor = getInitParameter(INIT_PARAM_RPC_EXECUTOR);
+        if (rpcExecutor == null) {
+            rpcExecutor = (numThreads > 0) ? RPC_EXECUTOR_POOL : RPC_EXECUTOR_INLINE;
+        }
+        mExecutor = createExecutor(rpcExecutor.trim(), numThreads);
+
+        String compressionThreshold = getInitParameter(INIT_PARAM_COMPRESSION_THRESHOLD);
+        if (compressionThreshold != null) {
+            mCompressionThreshold = Integer.parseInt(compressionThreshold.trim());
+        }
+
+        String userCallRate = getInitParameter(INIT_PARAM_USER_CALL_RATE);
+        String userCallBurst = getInitParameter(INIT_PARAM_USER_CALL_BURST);
+        String maxConcurrentCalls = getInitParameter(INIT_PARAM_MAX_CONCURRENT_CALLS);
+        mAdmission = new AdmissionController(
+                (userCallRate != null)
+                        ? Double.parseDouble(userCallRate.trim()) : DEFAULT_USER_CALL_RATE,
+                (userCallBurst != null)
+                        ? Integer.parseInt(userCallBurst.trim()) : DEFAULT_USER_CALL_BURST,
+                (maxConcurrentCalls != null)
+                        ? Integer.parseInt(maxConcurrentCalls.trim())
+                        : DEFAULT_MAX_CONCURRENT_CALLS);
+
+        String requestBudget = getInitParameter(INIT_PARAM_REQUEST_BUDGET);
+        if (requestBudget != null) {
+            mRequestBudgetMillis = Long.parseLong(requestBudget.trim());
+        }
+
+        String idempotencyTtl = getInitParameter(INIT_PARAM_IDEMPOTENCY_TTL);
+        if (idempotencyTtl != null) {
+            mIdempotencyCache = new IdempotencyCache(Integer.parseInt(idempotencyTtl.trim()));
+        }
+    }
+
+    /**
+     * Returns the shared PMF, creating it on first use - we use a context attribute, so other
+     * servlets can share the same instance. This is similar with a shared static field, but
+     * avoids dependencies. Creating it is expensive, so requests that never touch the
+     * datastore don't.
+     */
+    public static synchronized PersistenceManagerFactory getPersistenceManagerFactory(
+            ServletContext servletContext) {
+        if (pmfInstance == null) {
+            pmfInstance = (PersistenceManagerFactory) servletContext.getAttribute(
                     PersistenceManagerFactory.class.getName());
+        }
         if (pmfInstance == null) {
-            pmfInstance = JDOHelper
-                .getPersistenceManagerFactory("transactions-optional");
-            getServletContext().setAttribute(
-                    PersistenceManagerFactory.class.getName(),
-                    pmfInstance);
+            pmfInstance = JDOHelper.getPersistenceManagerFactory("transactions-optional");
+            servletContext.setAttribute(PersistenceManagerFactory.class.getName(), pmfInstance);
+        }
+        return pmfInstance;
+    }
+
+    /**
+     * Creates the executor for the given {@link #INIT_PARAM_RPC_EXECUTOR} mode, or returns null
+     * to run everything on the request thread. Tasks run with the submitting request's App
+     * Engine API environment, without which the user service, the datastore and URL fetch
+     * don't work off the request thread.
+     */
+    private static ExecutorService createExecutor(String mode, int numThreads) {
+        if (RPC_EXECUTOR_VIRTUAL.equals(mode)) {
+            ExecutorService virtualExecutor = newVirtualThreadExecutor();
+            if (virtualExecutor != null) {
+                return new ApiEnvironmentExecutor(new BoundedExecutor(virtualExecutor,
+                        (numThreads > 0) ? numThreads : DEFAULT_MAX_VIRTUAL_CALLS));
+            }
+            log.warning("Virtual threads aren't available on this JVM, using a thread pool.");
+            mode = RPC_EXECUTOR_POOL;
         }
-    } 
+
+        if (RPC_EXECUTOR_POOL.equals(mode) && numThreads > 0) {
+            // Bounded queue; once it's full, calls simply run on the request thread.
+            return new ApiEnvironmentExecutor(new ThreadPoolExecutor(numThreads, numThreads,
+                    60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(RPC_QUEUE_CAPACITY),
+                    new ThreadPoolExecutor.CallerRunsPolicy()));
+        }
+
+        if (!RPC_EXECUTOR_INLINE.equals(mode) && !RPC_EXECUTOR_POOL.equals(mode)) {
+            log.warning("Unknown " + INIT_PARAM_RPC_EXECUTOR + " '" + mode
+                    + "', running calls inline.");
+        }
+        return null;
+    }
+
+    /**
+     * Returns a virtual-thread-per-task executor, looked up reflectively since it only exists
+     * on newer JVMs, or null if there is none.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the executor for work that may run off the request thread, such as fanning out
+     * push messages, or null if everything must run on the request thread.
+     */
+    protected ExecutorService getExecutor() {
+        return mExecutor;
+    }
+
+    @Override
+    public void destroy() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+        super.destroy();
+    }
     
+    /**
+     * Handles a batch of calls. The request envelope is read in full before any call runs, so
+     * envelope keys apply wherever they appear, and each result is written to the response as
+     * soon as it has been computed, so the response is never held in memory as a whole.
+     */
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
 
+        if (req.getServletPath().endsWith(NDJSON_PATH_SUFFIX)) {
+            doPostNdjson(req, resp);
+            return;
+        }
+
         boolean debug = isDebug(req);
-        boolean prettyPrint = false;
 
-        JSONTokener tokener = new JSONTokener(req.getReader());
-        JSONObject requestJson;
-        JSONArray callsJson = null;
-        JSONObject responseJson = new JSONObject();
-        JSONArray resultsJson = new JSONArray();
+        boolean binaryRequest = isBinaryContentType(req.getContentType());
+        InputStream requestBody = openRequestStream(req);
+        if (requestBody == null) {
+            resp.setStatus(415);
+            resp.setContentType("text/plain");
+            resp.getWriter().write("Unsupported request Content-Encoding.");
+            return;
+        }
 
-        PersistenceManager pm = pmfInstance.getPersistenceManager();
-        UserService userService = UserServiceFactory.getUserService();
-        CallContext context = new CallContext(req, null, pm, userService);
+        CallContext context = new CallContext(req, null);
+
+        // Advertise the codings accepted for request bodies (RFC 7694).
+        resp.setHeader("Accept-Encoding", "gzip, deflate");
+        resp.setHeader("Vary", "Accept, Accept-Encoding");
+        ResultWriter resultWriter;
+        if (binaryRequest || acceptsBinary(req)) {
+            resp.setContentType(BinaryJson.CONTENT_TYPE);
+            resultWriter = new BinaryResultWriter(context, openResponseStream(req, resp));
+        } else {
+            resp.setContentType("application/json; charset=utf-8");
+            resultWriter = new JsonResultWriter(context, openResponseStream(req, resp));
+        }
 
         try {
+            RpcRequestReader requestReader;
+            if (binaryRequest) {
+                requestReader = new BinaryRpcRequestReader(requestBody);
+            } else {
+                String charset = req.getCharacterEncoding();
+                requestReader = new JsonRpcRequestReader(new InputStreamReader(requestBody,
+                        (charset != null) ? charset : "UTF-8"));
+            }
+
+            resultWriter.begin();
+
+            int numCalls = 0;
+            JsonRpcException requestError = null;
             try {
-                requestJson = new JSONObject(tokener);
-                if (requestJson.has("pretty") && requestJson.getBoolean("pretty"))
-                    prettyPrint = true;
+                // The whole envelope is read before any call runs, so that its other keys
+                // apply to every call wherever they appear in it.
+                List<JSONObject> calls = null;
+                List<Long> callSizes = new ArrayList<Long>();
+                String key;
+                while ((key = requestReader.nextKey()) != null) {
+                    if ("calls".equals(key)) {
+                        calls = new ArrayList<JSONObject>();
+                        callSizes.clear();
+                        JSONObject callParamsJson;
+                        long callStart = requestReader.getCount();
+                        while ((callParamsJson = requestReader.nextCall()) != null) {
+                            calls.add(callParamsJson);
+                            callSizes.add(requestReader.getCount() - callStart);
+                            callStart = requestReader.getCount();
+                        }
+                    } else if (RemindMeProtocol.REQUEST_PRETTY.equals(key)) {
+                        resultWriter.setPrettyPrint(
+                                "true".equals(String.valueOf(requestReader.nextValue())));
+                    } else if (TraceId.KEY.equals(key)) {
+                        Object traceId = requestReader.nextValue();
+                        if (traceId instanceof String) {
+                            context.setTraceId((String) traceId);
+                        }
+                    } else if (RemindMeProtocol.REQUEST_DEADLINE_MS.equals(key)) {
+                        // The client's own budget, counted from the start of the request.
+                        Object deadlineMillis = requestReader.nextValue();
+                        if (deadlineMillis instanceof Number) {
+                            context.shortenDeadline(((Number) deadlineMillis).longValue());
+                        }
+                    } else {
+                        requestReader.nextValue();
+                    }
+                }
 
-                callsJson = requestJson.getJSONArray("calls");
-            } catch (JSONException e) {
-                responseJson.put("error", 400);
-                responseJson.put("message", "Error parsing request object: " + e.getMessage());
-            }
+                if (calls == null) {
+                    throw new JsonRpcException(400,
+                            "Error parsing request object: JSONObject[\"calls\"] not found.");
+                }
+
+                // Consecutive read-only calls are collected and run together.
+                List<JSONObject> readOnlyCalls = new ArrayList<JSONObject>();
+                for (JSONObject callParamsJson : calls) {
+                    recordRequestSize(context, numCalls, callParamsJson,
+                            callSizes.get(numCalls));
+                    ++numCalls;
+
+                    if (mExecutor != null && isReadOnlyCall(callParamsJson)) {
+                        readOnlyCalls.add(callParamsJson);
+                        continue;
+                    }
+
+                    resultWriter.writeAll(readOnlyCalls,
+                            performReadOnlyCalls(context, readOnlyCalls,
+                                    numCalls - 1 - readOnlyCalls.size(), debug));
+                    readOnlyCalls.clear();
 
-            if (callsJson != null) {
-                for (int i = 0; i < callsJson.length(); i++) {
-                    JSONObject callParamsJson = callsJson.getJSONObject(i);
                     context.setParams(callParamsJson);
+                    context.setCallIndex(numCalls - 1);
+                    resultWriter.write(callParamsJson, performCallForResult(context, debug));
+                }
+
+                resultWriter.writeAll(readOnlyCalls,
+                        performReadOnlyCalls(context, readOnlyCalls,
+                                numCalls - readOnlyCalls.size(), debug));
+            } catch (JsonRpcException e) {
+                requestError = e;
+            }
+
+            resultWriter.end(requestError);
+
+            mStats.recordBatch(numCalls, requestReader.getCount(), resultWriter.getCount());
+
+        } catch (JSONException e) {
+            if (debug)
+                throw new RuntimeException(e);
+            log.log(Level.SEVERE, "JSONException", e);
+            if (!resp.isCommitted()) {
+                resp.reset();
+                resp.setStatus(500);
+                resp.setContentType("text/plain; charset=utf-8");
+                resp.getOutputStream().write(("Internal JSON serialization error: "
+                        + e.getMessage()).getBytes("UTF-8"));
+            }
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Handles a stream of newline-delimited call objects, answering with one newline-delimited
+     * result per call, tagged with the call's zero-based <code>index</code>. Calls are read,
+     * performed and answered one at a time, and each result is flushed as soon as it is
+     * ready, so neither side has to hold the whole batch. With an executor configured,
+     * consecutive read-only calls run concurrently and their results are written in completion
+     * order. A line that can't be parsed gets an error result and doesn't end the stream.
+     *
+     * The request budget applies to each call on its own, starting when its line is read,
+     * rather than to the whole stream, so long streams aren't cut off once the budget has
+     * passed. Only self-hosted deployments can hold a stream open that long.
+     *
+     * Calls over the user's call rate may run up to a burst ahead of it instead of failing
+     * with a 503 right away; the user's later calls pay that back. Nothing sleeps, since on
+     * App Engine that would hold the instance's only request thread.
+     *
+     * Responses aren't compressed, since a compressor would hold back the flushed lines.
+     */
+    private void doPostNdjson(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+
+        boolean debug = isDebug(req);
+
+        InputStream requestBody = openRequestStream(req);
+        if (requestBody == null) {
+            resp.setStatus(415);
+            resp.setContentType("text/plain");
+            resp.getWriter().write("Unsupported request Content-Encoding.");
+            return;
+        }
+        String charset = req.getCharacterEncoding();
+        BufferedReader requestLines = new BufferedReader(new InputStreamReader(requestBody,
+                (charset != null) ? charset : "UTF-8"));
+
+        CallContext context = new CallContext(req, null);
+        context.setStreamed(true);
+
+        resp.setContentType(NDJSON_CONTENT_TYPE + "; charset=utf-8");
+        resp.setHeader("Accept-Encoding", "gzip, deflate");
+        CountingWriter responseChars = new CountingWriter(new BufferedWriter(
+                new OutputStreamWriter(resp.getOutputStream(), "UTF-8")));
 
+        CompletionService<JSONObject> pendingCalls = (mExecutor != null)
+                ? new ExecutorCompletionService<JSONObject>(mExecutor) : null;
+        Map<Integer, JSONObject> pendingParams = new HashMap<Integer, JSONObject>();
+        int numCalls = 0;
+        long requestChars = 0;
+
+        try {
+            String line;
+            while ((line = requestLines.readLine()) != null) {
+                requestChars += line.length() + 1;
+                if (line.trim().length() == 0)
+                    continue;
+
+                int index = numCalls++;
+                JSONObject callParamsJson;
+                try {
+                    callParamsJson = new JSONObject(line);
+                } catch (JSONException e) {
                     JSONObject resultJson = new JSONObject();
-                    try {
-                        Object dataJson = performCall(context);
-                        resultJson.put("data", (dataJson != null) ? dataJson : new JSONObject());
-                    } catch (JsonRpcException e) {
-                        if (debug && e.getHttpCode() != 403)
-                            throw new RuntimeException(e);
-                        resultJson.put("error", e.getHttpCode());
-                        resultJson.put("message", e.getMessage());
-                        log.log(Level.SEVERE,
-                                "JsonRpcException (method: " + e.getMethodName() + ")", e);
+                    resultJson.put("error", 400);
+                    resultJson.put("message", "Error parsing call: " + e.getMessage());
+                    writeNdjsonResult(context, responseChars, index, null, resultJson);
+                    continue;
+                }
+                recordRequestSize(context, index, callParamsJson, line.length() + 1);
+                context.resetDeadline();
+
+                if (pendingCalls != null && isReadOnlyCall(callParamsJson)) {
+                    if (pendingParams.size() >= RPC_QUEUE_CAPACITY) {
+                        writeNdjsonResult(context, responseChars, pendingParams,
+                                getResult(pendingCalls.take()));
+                    }
+                    pendingParams.put(index, callParamsJson);
+                    pendingCalls.submit(newIndexedCall(
+                            newConcurrentCall(context, callParamsJson, index, debug), index));
+
+                    Future<JSONObject> completed;
+                    while ((completed = pendingCalls.poll()) != null) {
+                        writeNdjsonResult(context, responseChars, pendingParams,
+                                getResult(completed));
                     }
+                    continue;
+                }
 
-                    resultsJson.put(resultJson);
+                while (!pendingParams.isEmpty()) {
+                    writeNdjsonResult(context, responseChars, pendingParams,
+                            getResult(pendingCalls.take()));
                 }
-            }
 
-            responseJson.put("results", resultsJson);
+                // Don't let objects from earlier calls pile up in the persistence manager
+                // over a long stream.
+                if (context.pm != null)
+                    context.pm.evictAll();
+                context.setParams(callParamsJson);
+                context.setCallIndex(index);
+                writeNdjsonResult(context, responseChars, index, callParamsJson,
+                        performCallForResult(context, debug));
+            }
 
-            resp.setContentType("application/json");
+            while (!pendingParams.isEmpty()) {
+                writeNdjsonResult(context, responseChars, pendingParams,
+                        getResult(pendingCalls.take()));
+            }
+            responseChars.close();
 
-            if (prettyPrint)
-                resp.getWriter().write(responseJson.toString(2) + "\n");
-            else
-                resp.getWriter().write(responseJson.toString() + "\n");
+            mStats.recordBatch(numCalls, requestChars, responseChars.getCount());
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.log(Level.SEVERE, "Interrupted while streaming results", e);
         } catch (JSONException e) {
             if (debug)
                 throw new RuntimeException(e);
-            resp.setStatus(500);
-            resp.setContentType("text/plain");
-            resp.getWriter().write("Internal JSON serialization error: " + e.getMessage());
+            // Results have already been streamed; all we can do is end the response.
             log.log(Level.SEVERE, "JSONException", e);
         } finally {
-            pm.close();
+            context.close();
         }
     }
 
-    private Object performCall(CallContext context) throws JsonRpcException {
-        if (!context.getParams().has("method")) {
-            throw new JsonRpcException(400, "No method specified.");
+    private static Callable<JSONObject> newIndexedCall(final Callable<JSONObject> call,
+            final int index) {
+        return new Callable<JSONObject>() {
+            public JSONObject call() throws Exception {
+                return call.call().put("index", index);
+            }
+        };
+    }
+
+    /**
+     * Writes the result of a concurrently performed call, which carries its own index.
+     */
+    private void writeNdjsonResult(CallContext context, CountingWriter out,
+            Map<Integer, JSONObject> pendingParams, JSONObject resultJson)
+            throws JSONException, IOException {
+        int index = resultJson.getInt("index");
+        writeNdjsonResult(context, out, index, pendingParams.remove(index), resultJson);
+    }
+
+    private void writeNdjsonResult(CallContext context, CountingWriter out, int index,
+            JSONObject callParamsJson, JSONObject resultJson) throws JSONException, IOException {
+        long start = out.getCount();
+        out.write(resultJson.put("index", index).toString());
+        out.write("\n");
+        out.flush();
+        recordResponseSize(context, index, callParamsJson, out.getCount() - start);
+    }
+
+    /**
+     * Records the size of a call in the request, as counted while reading it.
+     */
+    private void recordRequestSize(CallContext context, int index, JSONObject callParamsJson,
+            long size) {
+        String statsName = getStatsName(callParamsJson);
+        mStats.forMethod(statsName).recordRequestSize(size);
+        if (events.isEnabled()) {
+            events.begin("rpc.request")
+                    .put("method", statsName)
+                    .put("index", index)
+                    .put("trace", context.getTraceId())
+                    .put("request_chars", size)
+                    .end();
+        }
+    }
+
+    /**
+     * Records the size of a call's result in the response, as counted while writing it.
+     */
+    private void recordResponseSize(CallContext context, int index, JSONObject callParamsJson,
+            long size) {
+        String statsName = (callParamsJson != null)
+                ? getStatsName(callParamsJson) : RpcStats.UNKNOWN_METHOD;
+        mStats.forMethod(statsName).recordResponseSize(size);
+        if (events.isEnabled()) {
+            events.begin("rpc.response")
+                    .put("method", statsName)
+                    .put("index", index)
+                    .put("trace", context.getTraceId())
+                    .put("response_chars", size)
+                    .end();
         }
+    }
 
-        Method method;
+    /**
+     * Returns the request body, decoding its Content-Encoding, or null if the coding isn't
+     * supported.
+     */
+    private static InputStream openRequestStream(HttpServletRequest req) throws IOException {
+        String contentEncoding = req.getHeader("Content-Encoding");
+        if (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding.trim()))
+            return req.getInputStream();
+        if (CompressingOutputStream.ENCODING_GZIP.equalsIgnoreCase(contentEncoding.trim()))
+            return new GZIPInputStream(req.getInputStream());
+        if (CompressingOutputStream.ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding.trim()))
+            return new InflaterInputStream(req.getInputStream());
+        return null;
+    }
+
+    private static boolean isBinaryContentType(String contentType) {
+        return contentType != null
+                && contentType.trim().toLowerCase().startsWith(BinaryJson.CONTENT_TYPE);
+    }
+
+    /**
+     * Returns whether the client listed the binary wire format in its Accept header.
+     */
+    private static boolean acceptsBinary(HttpServletRequest req) {
+        String accept = req.getHeader("Accept");
+        if (accept == null)
+            return false;
+        for (String type : accept.split(",")) {
+            String[] parts = type.trim().split(";");
+            if (isBinaryContentType(parts[0])
+                    && !(parts.length > 1 && parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?")))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the stream to write the response body to, compressing it past the configured
+     * threshold if the client accepts gzip or deflate.
+     */
+    private OutputStream openResponseStream(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        String encoding = null;
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        if (mCompressionThreshold >= 0 && acceptEncoding != null) {
+            for (String coding : acceptEncoding.split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (parts.length > 1 && parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?")) {
+                    continue;
+                }
+                if (CompressingOutputStream.ENCODING_GZIP.equalsIgnoreCase(parts[0].trim())) {
+                    encoding = CompressingOutputStream.ENCODING_GZIP;
+                    break;
+                } else if (CompressingOutputStream.ENCODING_DEFLATE.equalsIgnoreCase(
+                        parts[0].trim())) {
+                    encoding = CompressingOutputStream.ENCODING_DEFLATE;
+                }
+            }
+        }
+
+        if (encoding == null)
+            return resp.getOutputStream();
+        return new CompressingOutputStream(resp, encoding, mCompressionThreshold);
+    }
+
+    /**
+     * Performs the call described by the context's current params and wraps its outcome in a
+     * <code>{"data": ...}</code> or <code>{"error": ..., "message": ...}</code> result object.
+     */
+    private JSONObject performCallForResult(CallContext context, boolean debug)
+            throws JSONException {
+        String statsName = getStatsName(context.getParams());
+        RpcStats.MethodStats stats = mStats.forMethod(statsName);
+        long startNanos = System.nanoTime();
+        EventLog.Event event = events.begin("rpc.call");
+
+        JSONObject resultJson = new JSONObject();
         try {
-            String methodName = context.getParams().getString("method");
-            if (!mMethods.containsKey(methodName)) {
-                throw new JsonRpcException(400, "Unknown method.");
+            Object dataJson = performCall(context);
+            if (context.isNotModified()) {
+                resultJson.put("not_modified", true);
+            } else {
+                resultJson.put("data", (dataJson != null) ? dataJson : new JSONObject());
             }
-            method = mMethods.get(methodName);
-        } catch (JSONException e) {
-            throw new JsonRpcException(400, "Invalid method.");
+            if (context.getResultValidator() != null) {
+                resultJson.put("validator", context.getResultValidator());
+            }
+        } catch (JsonRpcException e) {
+            stats.recordError(e.getHttpCode());
+            if (debug && e.getHttpCode() != 403)
+                throw new RuntimeException(e);
+            resultJson.put("error", e.getHttpCode());
+            resultJson.put("message", e.getMessage());
+            if (e.getRetryAfterSeconds() > 0) {
+                resultJson.put("retry_after", e.getRetryAfterSeconds());
+                log.warning("Shed call (method: " + e.getMethodName() + "), retry after "
+                        + e.getRetryAfterSeconds() + "s");
+            } else {
+                log.log(Level.SEVERE,
+                        "JsonRpcException (method: " + e.getMethodName() + ")", e);
+            }
+        } finally {
+            stats.recordCall(System.nanoTime() - startNanos);
+            if (event.isEnabled()) {
+                event.put("method", statsName)
+                        .put("user", EventLog.hashUser(getUserKey(context)))
+                        .put("index", context.getCallIndex())
+                        .put("trace", context.getTraceId())
+                        .put("status", resultJson.optInt("error", 200))
+                        .end();
+            }
+        }
+        return resultJson;
+    }
+
+    /**
+     * Performs a run of read-only calls, concurrently if an executor is configured. Each
+     * concurrent call gets its own {@link CallContext} and {@link PersistenceManager}; results
+     * are returned in call order.
+     */
+    private List<JSONObject> performReadOnlyCalls(final CallContext context,
+            List<JSONObject> calls, int firstIndex, final boolean debug) throws JSONException {
+        List<JSONObject> results = new ArrayList<JSONObject>(calls.size());
+        if (calls.size() <= 1 || mExecutor == null) {
+            for (int i = 0; i < calls.size(); i++) {
+                context.setParams(calls.get(i));
+                context.setCallIndex(firstIndex + i);
+                results.add(performCallForResult(context, debug));
+            }
+            return results;
+        }
+
+        List<Future<JSONObject>> futures = new ArrayList<Future<JSONObject>>(calls.size());
+        for (int i = 0; i < calls.size(); i++) {
+            futures.add(mExecutor.submit(
+                    newConcurrentCall(context, calls.get(i), firstIndex + i, debug)));
+        }
+
+        try {
+            for (Future<JSONObject> future : futures) {
+                results.add(getResult(future));
+            }
+        } finally {
+            for (Future<JSONObject> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns a task that performs a call off the request thread, with its own
+     * {@link CallContext}, and so its own {@link PersistenceManager}.
+     */
+    private Callable<JSONObject> newConcurrentCall(final CallContext context,
+            final JSONObject callParamsJson, final int callIndex, final boolean debug) {
+        return new Callable<JSONObject>() {
+            public JSONObject call() throws JSONException {
+                CallContext callContext = new CallContext(context, callParamsJson);
+                callContext.setCallIndex(callIndex);
+                try {
+                    return performCallForResult(callContext, debug);
+                } finally {
+                    callContext.close();
+                }
+            }
+        };
+    }
+
+    private static JSONObject getResult(Future<JSONObject> future) throws JSONException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JSONException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof JSONException)
+                throw (JSONException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
         }
+    }
 
-        JsonRpcMethod rpcMethodAnnotation = method.getAnnotation(JsonRpcMethod.class);
-        String methodName = rpcMethodAnnotation.method(); 
+    private boolean isReadOnlyCall(JSONObject callParamsJson) {
+        Object methodNameObj = callParamsJson.opt("method");
+        if (methodNameObj == null)
+            return false;
+        RpcMethodBinding binding = mMethods.get(methodNameObj.toString());
+        return binding != null && binding.readOnly;
+    }
+
+    /**
+     * Returns the name that metrics for the given call are recorded under.
+     */
+    private String getStatsName(JSONObject callParamsJson) {
+        Object methodNameObj = callParamsJson.opt("method");
+        if (methodNameObj == null || !mMethods.containsKey(methodNameObj.toString()))
+            return RpcStats.UNKNOWN_METHOD;
+        return methodNameObj.toString();
+    }
+
+    /**
+     * Returns the call metrics recorded by this servlet instance.
+     */
+    protected RpcStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Returns the dispatch table entry for the given method name, or null if there is none.
+     * Package-private for the dispatch benchmark.
+     */
+    RpcMethodBinding getMethodBinding(String name) {
+        return mMethods.get(name);
+    }
+
+    /**
+     * Looks the call's method up in the dispatch table, checks that it may run, and performs
+     * it. Package-private for the dispatch benchmark.
+     */
+    Object performCall(CallContext context) throws JsonRpcException {
+        Object methodNameObj = context.getParams().opt("method");
+        if (methodNameObj == null) {
+            throw new JsonRpcException(400, "No method specified.");
+        }
+
+        RpcMethodBinding binding = mMethods.get(methodNameObj.toString());
+        if (binding == null) {
+            throw new JsonRpcException(400, "Unknown method.");
+        }
 
-        if (rpcMethodAnnotation.requires_login() && !context.getUserService().isUserLoggedIn()) {
-            throw new JsonRpcException(403, methodName,
+        if (context.getRemainingMillis() <= 0) {
+            // Refuse rather than risk losing the results of the whole batch.
+            throw new JsonRpcException(504, binding.name,
+                    "The request deadline passed before this call could run.");
+        }
+
+        if ((binding.requiresLogin || binding.requiresAdmin)
+                && !context.getUserService().isUserLoggedIn()) {
+            throw new JsonRpcException(403, binding.name,
                     "You must authenticate to run this RPC call.");
         }
 
+        if (binding.requiresAdmin && !context.getUserService().isUserAdmin()) {
+            throw new JsonRpcException(403, binding.name,
+                    "You must be an administrator to run this RPC call.");
+        }
+
+        int retryAfter = mAdmission.admit(getUserKey(context), binding.admissionClass,
+                context.isStreamed());
+        if (retryAfter > 0) {
+            JsonRpcException e = new JsonRpcException(503, binding.name,
+                    "The server is busy; retry later.");
+            e.setRetryAfterSeconds(retryAfter);
+            throw e;
+        }
+
         try {
-            Object data = method.invoke(this, context);
-            return data;
+            return performAdmittedCall(binding, context);
+        } finally {
+            mAdmission.release(binding.admissionClass);
+        }
+    }
 
-        } catch (InvocationTargetException e) {
-            if (e.getCause() instanceof JsonRpcException) {
-                JsonRpcException e2 = (JsonRpcException) e.getCause();
-                e2.setMethodName(methodName);
-                throw e2;
-            } else if (e.getCause() instanceof JSONException) {
-                throw new JsonRpcException(500, methodName,
-                        "Internal serialization error: " + e.getMessage(), e.getCause());
-            } else {
-                throw new JsonRpcException(500, methodName,
-                        "Internal error: " + e.getMessage(), e.getCause());
+    private Object performAdmittedCall(RpcMethodBinding binding, CallContext context)
+            throws JsonRpcException {
+        if (!binding.readOnly) {
+            Object idempotencyKey = context.getParams().opt(RemindMeProtocol.ARG_IDEMPOTENCY_KEY);
+            if (idempotencyKey == null)
+                return binding.invoke(this, context);
+            return performIdempotentCall(binding, context, idempotencyKey.toString());
+        }
+
+        String flightKey = getFlightKey(context);
+        InFlightCall flight = new InFlightCall();
+        InFlightCall existing = mInFlightCalls.putIfAbsent(flightKey, flight);
+        if (existing != null) {
+            try {
+                // Wait no longer than our own deadline; a stuck leader must not hold
+                // its followers past theirs.
+                if (existing.done.await(context.getRemainingMillis(), TimeUnit.MILLISECONDS))
+                    return existing.getOutcome(context);
+                log.info("Gave up waiting for an identical call to " + binding.name
+                        + "; performing it directly");
+                return binding.invoke(this, context);
+            } catch (InterruptedException e) {
+                // Don't leave the caller hanging; perform the call on our own.
+                Thread.currentThread().interrupt();
+                return binding.invoke(this, context);
             }
-        } catch (IllegalArgumentException e) {
-            throw new JsonRpcException(500, methodName,
-                    "Internal error: Illegal RPC call arguments.");
-        } catch (IllegalAccessException e) {
-            throw new JsonRpcException(500, methodName,
-                    "Internal error: Illegal RPC access exception.");
+        }
+
+        try {
+            flight.result = binding.invoke(this, context);
+            flight.resultValidator = context.resultValidator;
+            flight.notModified = context.notModified;
+            return flight.result;
+        } catch (JsonRpcException e) {
+            flight.error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            flight.error = e;
+            throw e;
+        } catch (Error e) {
+            flight.error = e;
+            throw e;
+        } finally {
+            mInFlightCalls.remove(flightKey, flight);
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * Performs a write tagged with an idempotency key, or replays the result remembered for
+     * the key if the client already made the call. Only successful results are remembered.
+     */
+    private Object performIdempotentCall(RpcMethodBinding binding, CallContext context,
+            String idempotencyKey) throws JsonRpcException {
+        if (idempotencyKey.length() == 0
+                || idempotencyKey.length() > IdempotencyCache.MAX_KEY_LENGTH) {
+            throw new JsonRpcException(400, binding.name, "Invalid idempotency_key.");
+        }
+
+        String cacheKey = IdempotencyCache.makeKey(getUserKey(context), binding.name,
+                idempotencyKey);
+        String cachedResult = mIdempotencyCache.begin(cacheKey);
+        if (cachedResult != null) {
+            try {
+                log.info("Replaying result of " + binding.name + " for idempotency_key "
+                        + idempotencyKey);
+                return new JSONObject(cachedResult);
+            } catch (JSONException e) {
+                log.log(Level.WARNING, "Discarding unreadable replay result", e);
+            }
+        }
+
+        boolean completed = false;
+        try {
+            Object result = binding.invoke(this, context);
+            mIdempotencyCache.complete(cacheKey,
+                    (result != null) ? result.toString() : "{}");
+            completed = true;
+            return result;
+        } finally {
+            if (!completed) {
+                mIdempotencyCache.abandon(cacheKey);
+            }
+        }
+    }
+
+    /**
+     * Returns the key that identifies the caller: the user ID of signed-in users, or the
+     * remote address of anonymous callers.
+     */
+    private static String getUserKey(CallContext context) {
+        User user = context.getUserService().getCurrentUser();
+        return (user != null) ? user.getUserId() : "ip:" + context.getRequest().getRemoteAddr();
+    }
+
+    /**
+     * Returns the key that identifies calls which are guaranteed to produce the same outcome:
+     * the calling user along with the complete call params, including the method name and any
+     * <code>if_none_match</code> validator. Params are written with their keys sorted, since
+     * {@link JSONObject#toString()} follows hash order and identical calls could differ.
+     */
+    private static String getFlightKey(CallContext context) {
+        StringBuilder key = new StringBuilder(getUserKey(context)).append('\n');
+        appendCanonicalJson(key, context.getParams());
+        return key.toString();
+    }
+
+    /**
+     * Appends the JSON text of the given value with the keys of every object in sorted order.
+     */
+    private static void appendCanonicalJson(StringBuilder out, Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            out.append('{');
+            Iterator<?> keys = object.sortedKeys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                out.append(JSONObject.quote(key)).append(':');
+                appendCanonicalJson(out, object.opt(key));
+                if (keys.hasNext())
+                    out.append(',');
+            }
+            out.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            out.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0)
+                    out.append(',');
+                appendCanonicalJson(out, array.opt(i));
+            }
+            out.append(']');
+        } else if (value instanceof String) {
+            out.append(JSONObject.quote((String) value));
+        } else {
+            // Numbers, booleans and JSONObject.NULL.
+            out.append(String.valueOf(value));
         }
     }
 
@@ -207,6 +1072,249 @@ public class JsonRpcServlet extends HttpServlet {
         return false;
     }
 
+    /**
+     * The outcome of a read-only call that concurrent identical calls wait for. Fields are
+     * written by the performing thread before {@link #done} is counted down.
+     */
+    private static final class InFlightCall {
+        final CountDownLatch done = new CountDownLatch(1);
+        Object result;
+        String resultValidator;
+        boolean notModified;
+        Throwable error;
+
+        Object getOutcome(CallContext context) throws JsonRpcException {
+            if (error instanceof JsonRpcException)
+                throw (JsonRpcException) error;
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            if (error instanceof Error)
+                throw (Error) error;
+            context.resultValidator = resultValidator;
+            context.notModified = notModified;
+            return result;
+        }
+    }
+
+    /**
+     * A precompiled entry in the dispatch table: the target method, made accessible up front so
+     * that invocations skip the per-call access check, along with its annotation metadata.
+     */
+    static final class RpcMethodBinding {
+        final Method method;
+        final String name;
+        final boolean requiresLogin;
+        final boolean requiresAdmin;
+        final boolean readOnly;
+        final int admissionClass;
+
+        RpcMethodBinding(Method method, JsonRpcMethod annotation) {
+            this.method = method;
+            this.name = annotation.method();
+            this.requiresLogin = annotation.requires_login();
+            this.requiresAdmin = annotation.requires_admin();
+            this.readOnly = annotation.read_only();
+            if (annotation.long_poll()) {
+                this.admissionClass = AdmissionController.CALL_LONG_POLL;
+            } else if (annotation.background()) {
+                this.admissionClass = AdmissionController.CALL_BACKGROUND;
+            } else {
+                this.admissionClass = AdmissionController.CALL_INTERACTIVE;
+            }
+            try {
+                method.setAccessible(true);
+            } catch (SecurityException e) {
+                // Fall back to checked invocation.
+            }
+        }
+
+        Object invoke(JsonRpcServlet servlet, CallContext context) throws JsonRpcException {
+            try {
+                return method.invoke(servlet, context);
+
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof JsonRpcException) {
+                    JsonRpcException e2 = (JsonRpcException) e.getCause();
+                    e2.setMethodName(name);
+                    throw e2;
+                } else if (e.getCause() instanceof JSONException) {
+                    throw new JsonRpcException(500, name,
+                            "Internal serialization error: " + e.getMessage(), e.getCause());
+                } else {
+                    throw new JsonRpcException(500, name,
+                            "Internal error: " + e.getMessage(), e.getCause());
+                }
+            } catch (IllegalArgumentException e) {
+                throw new JsonRpcException(500, name,
+                        "Internal error: Illegal RPC call arguments.");
+            } catch (IllegalAccessException e) {
+                throw new JsonRpcException(500, name,
+                        "Internal error: Illegal RPC access exception.");
+            }
+        }
+    }
+
+    /**
+     * Writes the response envelope, <code>{"results": [...]}</code>, in one of the supported
+     * wire formats, recording the size of each result.
+     */
+    private abstract class ResultWriter {
+        private final CallContext mContext;
+
+        private int mNumWritten;
+
+        private boolean mPrettyPrint;
+
+        ResultWriter(CallContext context) {
+            mContext = context;
+        }
+
+        void setPrettyPrint(boolean prettyPrint) {
+            mPrettyPrint = prettyPrint;
+        }
+
+        boolean isPrettyPrint() {
+            return mPrettyPrint;
+        }
+
+        void write(JSONObject callParamsJson, JSONObject resultJson)
+                throws JSONException, IOException {
+            long start = getCount();
+            writeResult(resultJson);
+            // Results are written in call order.
+            recordResponseSize(mContext, mNumWritten++, callParamsJson, getCount() - start);
+        }
+
+        void writeAll(List<JSONObject> calls, List<JSONObject> results)
+                throws JSONException, IOException {
+            for (int i = 0; i < results.size(); i++) {
+                write(calls.get(i), results.get(i));
+            }
+        }
+
+        /**
+         * Opens the envelope and its results array.
+         */
+        abstract void begin() throws JSONException, IOException;
+
+        abstract void writeResult(JSONObject resultJson) throws JSONException, IOException;
+
+        /**
+         * Closes the results array, adds the request-level error if there was one, and closes
+         * the envelope and the underlying stream.
+         */
+        abstract void end(JsonRpcException requestError) throws JSONException, IOException;
+
+        /**
+         * Returns the amount of the response written so far, in characters for text formats
+         * and bytes for binary ones.
+         */
+        abstract long getCount();
+    }
+
+    private final class JsonResultWriter extends ResultWriter {
+        private final CountingWriter mCounter;
+        private final JSONWriter mJSONWriter;
+
+        JsonResultWriter(CallContext context, OutputStream out) throws IOException {
+            super(context);
+            mCounter = new CountingWriter(new BufferedWriter(new OutputStreamWriter(out,
+                    "UTF-8")));
+            mJSONWriter = new JSONWriter(mCounter);
+        }
+
+        @Override
+        void begin() throws JSONException {
+            mJSONWriter.object().key("results").array();
+        }
+
+        @Override
+        void writeResult(JSONObject resultJson) throws JSONException {
+            mJSONWriter.value(isPrettyPrint() ? new IndentedJson(resultJson) : resultJson);
+        }
+
+        @Override
+        void end(JsonRpcException requestError) throws JSONException, IOException {
+            mJSONWriter.endArray();
+            if (requestError != null) {
+                mJSONWriter.key("error").value(requestError.getHttpCode());
+                mJSONWriter.key("message").value(requestError.getMessage());
+            }
+            mJSONWriter.endObject();
+            mCounter.write("\n");
+            mCounter.close();
+        }
+
+        @Override
+        long getCount() {
+            return mCounter.getCount();
+        }
+    }
+
+    /**
+     * Writes the response in the {@link BinaryJson} wire format; pretty printing doesn't apply.
+     */
+    private final class BinaryResultWriter extends ResultWriter {
+        private final BinaryJson.Writer mWriter;
+
+        BinaryResultWriter(CallContext context, OutputStream out) throws IOException {
+            super(context);
+            mWriter = new BinaryJson.Writer(out);
+        }
+
+        @Override
+        void begin() throws IOException {
+            mWriter.beginObject().key("results").beginArray();
+        }
+
+        @Override
+        void writeResult(JSONObject resultJson) throws IOException {
+            mWriter.value(resultJson);
+        }
+
+        @Override
+        void end(JsonRpcException requestError) throws IOException {
+            mWriter.end();
+            if (requestError != null) {
+                mWriter.key("error").value(requestError.getHttpCode());
+                mWriter.key("message").value(requestError.getMessage());
+            }
+            mWriter.end();
+            mWriter.close();
+        }
+
+        @Override
+        long getCount() {
+            return mWriter.getCount();
+        }
+    }
+
+    /**
+     * Lets {@link JSONWriter} emit a single result indented, for requests that ask for
+     * pretty printing.
+     */
+    private static final class IndentedJson implements JSONString {
+        private final JSONObject mJson;
+
+        IndentedJson(JSONObject json) {
+            mJson = json;
+        }
+
+        public String toJSONString() {
+            try {
+                return mJson.toString(2);
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * The context calls are performed in. One context is shared by all calls of a batch that
+     * run on the request thread. Resources such as the {@link PersistenceManager} are only
+     * set up when a call first asks for them, and are released once, by {@link #close()},
+     * when the batch is done; calls that don't need them don't pay for them.
+     */
     public class CallContext {
         private HttpServletRequest request;
 
@@ -216,12 +1324,76 @@ public class JsonRpcServlet extends HttpServlet {
 
         private UserService userService;
 
-        public CallContext(HttpServletRequest request, JSONObject params, PersistenceManager pm,
-                UserService userService) {
+        private Map<String, Object> attributes;
+
+        private String resultValidator;
+
+        private boolean notModified;
+
+        private int callIndex;
+
+        private String traceId = TraceId.generate();
+
+        private final long startNanos = System.nanoTime();
+
+        private long deadlineNanos = startNanos + mRequestBudgetMillis * 1000000L;
+
+        private boolean streamed;
+
+        public CallContext(HttpServletRequest request, JSONObject params) {
             this.request = request;
             this.params = params;
-            this.pm = pm;
-            this.userService = userService;
+        }
+
+        /**
+         * Creates a context for a call running alongside the given context's calls, sharing
+         * its request, user and deadline but not its other resources.
+         */
+        CallContext(CallContext parent, JSONObject params) {
+            this(parent.request, params);
+            this.userService = parent.getUserService();
+            this.deadlineNanos = parent.deadlineNanos;
+            this.traceId = parent.traceId;
+            this.streamed = parent.streamed;
+        }
+
+        /**
+         * Returns how many milliseconds are left before the request's deadline. Long-running
+         * calls should check this, and wrap up with partial results when it runs low.
+         */
+        public long getRemainingMillis() {
+            return (deadlineNanos - System.nanoTime()) / 1000000L;
+        }
+
+        public boolean hasTimeRemaining(long millis) {
+            return getRemainingMillis() > millis;
+        }
+
+        /**
+         * Returns whether the call is part of an NDJSON call stream.
+         */
+        public boolean isStreamed() {
+            return streamed;
+        }
+
+        void setStreamed(boolean streamed) {
+            this.streamed = streamed;
+        }
+
+        /**
+         * Starts a new request budget from now, for streams whose calls each get their own.
+         */
+        void resetDeadline() {
+            deadlineNanos = System.nanoTime() + mRequestBudgetMillis * 1000000L;
+        }
+
+        /**
+         * Moves the deadline earlier, to the given number of milliseconds after the start of
+         * the request, if that is sooner than the current one.
+         */
+        void shortenDeadline(long millisAfterStart) {
+            deadlineNanos = Math.min(deadlineNanos,
+                    startNanos + Math.max(0, millisAfterStart) * 1000000L);
         }
 
         public HttpServletRequest getRequest() {
@@ -234,14 +1406,93 @@ public class JsonRpcServlet extends HttpServlet {
 
         public void setParams(JSONObject params) {
             this.params = params;
+            this.resultValidator = null;
+            this.notModified = false;
+        }
+
+        /**
+         * Returns the position of the current call within its batch.
+         */
+        public int getCallIndex() {
+            return callIndex;
+        }
+
+        void setCallIndex(int callIndex) {
+            this.callIndex = callIndex;
+        }
+
+        /**
+         * Returns the {@link TraceId} of the request, as sent by the client or, if it didn't
+         * send one, generated here. Work caused by the request, such as push messages, should
+         * carry it along.
+         */
+        public String getTraceId() {
+            return traceId;
         }
 
+        void setTraceId(String traceId) {
+            this.traceId = traceId;
+        }
+
+        /**
+         * Returns the persistence manager for this context, opening it on first use.
+         */
         public PersistenceManager getPersistenceManager() {
+            if (pm == null)
+                pm = getPersistenceManagerFactory(getServletContext()).getPersistenceManager();
             return pm;
         }
 
         public UserService getUserService() {
+            if (userService == null)
+                userService = UserServiceFactory.getUserService();
             return userService;
         }
+
+        /**
+         * Returns a value cached in this context by an earlier call of the batch, such as the
+         * current user's record, or null.
+         */
+        public Object getAttribute(String name) {
+            return (attributes != null) ? attributes.get(name) : null;
+        }
+
+        public void setAttribute(String name, Object value) {
+            if (attributes == null)
+                attributes = new HashMap<String, Object>();
+            attributes.put(name, value);
+        }
+
+        /**
+         * Releases the resources opened for this context.
+         */
+        public void close() {
+            if (pm != null) {
+                pm.close();
+                pm = null;
+            }
+            attributes = null;
+        }
+
+        /**
+         * Attaches a validator (a fingerprint of the result) to the current call's result, and
+         * checks it against the <code>if_none_match</code> validator sent by the client. If they
+         * match, the client's copy is still current: the method should return null without
+         * building its result, and a <code>not_modified</code> result is sent instead.
+         */
+        public boolean checkNotModified(String validator) {
+            this.resultValidator = validator;
+            this.notModified = validator != null
+                    && validator.equals(params.optString(RemindMeProtocol.ARG_IF_NONE_MATCH, null));
+            return this.notModified;
+        }
+
+        public String getResultValidator() {
+            return resultValidator;
+        }
+
+        public boolean isNotModified() {
+            return notModified;
+        }
     }
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.samsung.appengine.jsonrpc.server;
+
+import org.json.JSONObject;
+
+import com.samsung.appengine.allshared.JsonRpcException;
+
+/**
+ * Reads a JSON-RPC request envelope incrementally in one of the supported wire formats.
+ * Envelope keys are visited in the order they appear; callers must either read the value of
+ * each key with {@link #nextValue()} or, for the <code>calls</code> key, drain it with
+ * {@link #nextCall()}. Malformed requests are reported as HTTP 400 {@link JsonRpcException}s.
+ */
+interface RpcRequestReader {
+    /**
+     * Advances to the next key of the envelope object.
+     *
+     * @return the key, or null once the end of the envelope has been reached.
+     */
+    String nextKey() throws JsonRpcException;
+
+    /**
+     * Reads the complete value of the current envelope key.
+     */
+    Object nextValue() throws JsonRpcException;
+
+    /**
+     * Reads the next entry of the <code>calls</code> array; the current envelope key must be
+     * <code>calls</code>.
+     *
+     * @return the call object, or null once the end of the array has been reached.
+     */
+    JSONObject nextCall() throws JsonRpcException;
+
+    /**
+     * Returns the amount of the request read so far, in characters for text formats and bytes
+     * for binary ones.
+     */
+    long getCount();
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.jsonrpc.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * In-memory call metrics for a {@link JsonRpcServlet} instance: per-method call and error
+ * counts, latency and payload size histograms, and per-batch sizes. Recording never locks,
+ * so it is cheap enough to do on every call. Metrics are per instance and are lost when the
+ * instance shuts down.
+ */
+public class RpcStats {
+    /**
+     * Name under which calls to unknown methods are recorded, so that arbitrary method names
+     * sent by clients can't grow the registry.
+     */
+    static final String UNKNOWN_METHOD = "(unknown)";
+
+    private final ConcurrentMap<String, MethodStats> mMethods =
+            new ConcurrentHashMap<String, MethodStats>();
+
+    private final Histogram mBatchSizes = new Histogram();
+    private final Histogram mBatchRequestChars = new Histogram();
+    private final Histogram mBatchResponseChars = new Histogram();
+
+    public MethodStats forMethod(String methodName) {
+        MethodStats stats = mMethods.get(methodName);
+        if (stats == null) {
+            stats = new MethodStats();
+            MethodStats existing = mMethods.putIfAbsent(methodName, stats);
+            if (existing != null)
+                stats = existing;
+        }
+        return stats;
+    }
+
+    public void recordBatch(int numCalls, long requestChars, long responseChars) {
+        mBatchSizes.record(numCalls);
+        mBatchRequestChars.record(requestChars);
+        mBatchResponseChars.record(responseChars);
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject methodsJson = new JSONObject();
+        for (Map.Entry<String, MethodStats> entry : mMethods.entrySet()) {
+            methodsJson.put(entry.getKey(), entry.getValue().toJSON());
+        }
+
+        JSONObject batchesJson = new JSONObject();
+        batchesJson.put("size", mBatchSizes.toJSON());
+        batchesJson.put("request_chars", mBatchRequestChars.toJSON());
+        batchesJson.put("response_chars", mBatchResponseChars.toJSON());
+
+        JSONObject json = new JSONObject();
+        json.put("methods", methodsJson);
+        json.put("batches", batchesJson);
+        return json;
+    }
+
+    /**
+     * Metrics for a single RPC method. Payload sizes are measured in characters of the
+     * serialized call and result objects.
+     */
+    public static final class MethodStats {
+        private final AtomicLong mCalls = new AtomicLong();
+        private final ConcurrentMap<Integer, AtomicLong> mErrors =
+                new ConcurrentHashMap<Integer, AtomicLong>();
+        private final Histogram mLatencyMicros = new Histogram();
+        private final Histogram mRequestChars = new Histogram();
+        private final Histogram mResponseChars = new Histogram();
+
+        public void recordCall(long latencyNanos) {
+            mCalls.incrementAndGet();
+            mLatencyMicros.record(latencyNanos / 1000);
+        }
+
+        public void recordError(int httpCode) {
+            AtomicLong count = mErrors.get(httpCode);
+            if (count == null) {
+                count = new AtomicLong();
+                AtomicLong existing = mErrors.putIfAbsent(httpCode, count);
+                if (existing != null)
+                    count = existing;
+            }
+            count.incrementAndGet();
+        }
+
+        public void recordRequestSize(long chars) {
+            mRequestChars.record(chars);
+        }
+
+        public void recordResponseSize(long chars) {
+            mResponseChars.record(chars);
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject errorsJson = new JSONObject();
+            for (Map.Entry<Integer, AtomicLong> entry : mErrors.entrySet()) {
+                errorsJson.put(entry.getKey().toString(), entry.getValue().get());
+            }
+
+            JSONObject json = new JSONObject();
+            json.put("calls", mCalls.get());
+            json.put("errors", errorsJson);
+            json.put("latency_us", mLatencyMicros.toJSON());
+            json.put("request_chars", mRequestChars.toJSON());
+            json.put("response_chars", mResponseChars.toJSON());
+            return json;
+        }
+    }
+
+    /**
+     * A lock-free histogram of non-negative values with log-linear buckets: each power of two
+     * is split into {@link #SUB_BUCKETS} equal buckets, which bounds the relative error of any
+     * reported percentile to 1/{@link #SUB_BUCKETS}, under 2%. That takes about 30KB per
+     * histogram.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 6;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0)
+                value = 0;
+            mBuckets.incrementAndGet(bucketIndex(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        /**
+         * Returns an upper bound for the given percentile (0-100) of the recorded values.
+         */
+        public long getPercentile(double percentile) {
+            long count = mCount.get();
+            if (count == 0)
+                return 0;
+
+            long threshold = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= threshold && seen > 0)
+                    return Math.min(bucketUpperBound(i), mMax.get());
+            }
+            return mMax.get();
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            long count = mCount.get();
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("mean", (count == 0) ? 0 : mSum.get() / count);
+            json.put("p50", getPercentile(50));
+            json.put("p90", getPercentile(90));
+            json.put("p95", getPercentile(95));
+            json.put("p99", getPercentile(99));
+            json.put("max", mMax.get());
+            return json;
+        }
+
+        static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long bucketUpperBound(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int subBucket = index % SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            long lower = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+            return lower + width - 1;
+        }
+    }
+}
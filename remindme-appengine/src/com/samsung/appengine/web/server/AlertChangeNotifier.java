@@ -0,0 +1,114 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.samsung.appengine.web.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wakes up <code>alerts.watch</code> calls parked on this instance when their user's alerts
+ * change. Notifications only reach watchers on the same instance, so watchers also recheck
+ * the datastore periodically to pick up changes made through other instances.
+ */
+class AlertChangeNotifier {
+    private static final AlertChangeNotifier sInstance = new AlertChangeNotifier();
+
+    /**
+     * Users with at least one watcher; users nobody is watching cost nothing.
+     */
+    private final Map<String, UserChanges> mUsers = new HashMap<String, UserChanges>();
+
+    static AlertChangeNotifier get() {
+        return sInstance;
+    }
+
+    /**
+     * Starts watching a user's alerts. The returned watch must be closed.
+     */
+    public Watch watch(String userId) {
+        synchronized (mUsers) {
+            UserChanges changes = mUsers.get(userId);
+            if (changes == null) {
+                changes = new UserChanges();
+                mUsers.put(userId, changes);
+            }
+            changes.watchers++;
+            return new Watch(userId, changes);
+        }
+    }
+
+    public void notifyChanged(String userId) {
+        UserChanges changes;
+        synchronized (mUsers) {
+            changes = mUsers.get(userId);
+        }
+        if (changes != null) {
+            synchronized (changes) {
+                changes.version++;
+                changes.notifyAll();
+            }
+        }
+    }
+
+    private static final class UserChanges {
+        long version;
+        int watchers;
+    }
+
+    public final class Watch {
+        private final String mUserId;
+        private final UserChanges mChanges;
+        private long mSeenVersion;
+
+        private Watch(String userId, UserChanges changes) {
+            mUserId = userId;
+            mChanges = changes;
+            synchronized (changes) {
+                mSeenVersion = changes.version;
+            }
+        }
+
+        /**
+         * Waits until a change is notified or the timeout expires.
+         *
+         * @return whether a change was notified since the watch started or this method last
+         *     returned true.
+         */
+        public boolean awaitChange(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            synchronized (mChanges) {
+                long remaining = timeoutMillis;
+                while (mChanges.version == mSeenVersion && remaining > 0) {
+                    mChanges.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                if (mChanges.version == mSeenVersion)
+                    return false;
+                mSeenVersion = mChanges.version;
+                return true;
+            }
+        }
+
+        public void close() {
+            synchronized (mUsers) {
+                if (--mChanges.watchers == 0)
+                    mUsers.remove(mUserId);
+            }
+        }
+    }
+}
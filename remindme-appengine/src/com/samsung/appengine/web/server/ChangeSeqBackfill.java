@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.web.server;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Gives change sequence numbers to alerts last written before there were any. Those alerts
+ * lack the <code>changeSeq</code> property, so no <code>since_seq</code> query can match
+ * them. Each user's alerts are numbered once, in one transaction on the user's entity
+ * group, after which the user's record is marked <code>seqBackfilled</code>.
+ */
+class ChangeSeqBackfill {
+    private static final Logger log = Logger.getLogger(ChangeSeqBackfill.class.getName());
+
+    private static final String ALERT_KIND = "ModelImpl$Alert";
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final int MAX_BATCH_PUT = 500;
+
+    private ChangeSeqBackfill() {
+    }
+
+    /**
+     * Numbers the given user's unnumbered alerts after the user's current change sequence
+     * number, unless that was already done. Must not run inside a transaction on the user's
+     * entity group.
+     *
+     * @return false if the user's record kept changing under it; the next sync tries again.
+     */
+    public static boolean run(Key userKey) {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Transaction txn = datastore.beginTransaction();
+            try {
+                Entity user = datastore.get(txn, userKey);
+                if (Boolean.TRUE.equals(user.getProperty("seqBackfilled"))) {
+                    txn.commit();
+                    return true;
+                }
+
+                Object changeSeq = user.getProperty("changeSeq");
+                long seq = (changeSeq == null) ? 0 : ((Number) changeSeq).longValue();
+                List<Entity> stamped = new ArrayList<Entity>();
+                Query query = new Query(ALERT_KIND, userKey);
+                for (Entity alert : datastore.prepare(txn, query).asIterable(
+                        FetchOptions.Builder.withChunkSize(MAX_BATCH_PUT))) {
+                    if (alert.getProperty("changeSeq") == null) {
+                        alert.setProperty("changeSeq", ++seq);
+                        stamped.add(alert);
+                    }
+                }
+                for (int start = 0; start < stamped.size(); start += MAX_BATCH_PUT) {
+                    datastore.put(txn, stamped.subList(start,
+                            Math.min(start + MAX_BATCH_PUT, stamped.size())));
+                }
+
+                user.setProperty("changeSeq", seq);
+                user.setProperty("seqBackfilled", true);
+                datastore.put(txn, user);
+                txn.commit();
+                if (!stamped.isEmpty()) {
+                    log.info("Numbered " + stamped.size() + " legacy alerts of " + userKey);
+                }
+                return true;
+            } catch (EntityNotFoundException e) {
+                // No record yet, so no alerts either.
+                return true;
+            } catch (ConcurrentModificationException e) {
+                log.info("Retrying change sequence backfill for " + userKey);
+            } finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+        log.warning("Couldn't number the legacy alerts of " + userKey + "; will retry");
+        return false;
+    }
+}
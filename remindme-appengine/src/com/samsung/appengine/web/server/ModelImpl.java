@@ -71,6 +71,20 @@ public class ModelImpl {
         @Persistent
         private boolean pendingDelete;
 
+        /**
+         * Server time at which the alert was marked deleted; tombstones are compacted by it.
+         * Unlike modifiedDate, it is never taken from the client.
+         */
+        @Persistent
+        private Date deletedDate;
+
+        /**
+         * Position of this alert's last change in its owner's change sequence; null for
+         * alerts last written before sequence numbers were introduced.
+         */
+        @Persistent
+        private Long changeSeq;
+
         /**
          * Used only during sync; when clients upload new entries, the server's
          * sync response will include a local ID and server-side ID so the
@@ -131,6 +145,22 @@ public class ModelImpl {
             return json;
         }
 
+        /**
+         * Like {@link #toJSON()}, but without the body, for listings that only need to know
+         * which alerts exist and when they changed.
+         */
+        public JSONObject toSummaryJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", getId());
+            json.put("owner_id", getOwnerId());
+            json.put("targetId", getTargetId());
+            json.put("date_created", Util.formatDateISO8601(getCreatedDate()));
+            json.put("date_modified", Util.formatDateISO8601(getModifiedDate()));
+            if (isPendingDelete())
+                json.put("delete", true);
+            return json;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (getKey() == null ||( (Alert) obj).getKey() == null)
@@ -198,10 +228,23 @@ public class ModelImpl {
             return pendingDelete;
         }
 
+        public Date getDeletedDate() {
+            return deletedDate;
+        }
+
+        public Long getChangeSeq() {
+            return changeSeq;
+        }
+
+        public void setChangeSeq(long changeSeq) {
+            this.changeSeq = changeSeq;
+        }
+
         public void markForDeletion() {
             targetId = "";
             body = new Text("");
             pendingDelete = true;
+            deletedDate = new Date();
             touch();
         }
 
@@ -219,6 +262,26 @@ public class ModelImpl {
         @Persistent
         private String email;
 
+        /**
+         * The last change sequence number handed out to one of this user's alerts.
+         */
+        @Persistent
+        private Long changeSeq;
+
+        /**
+         * The highest change sequence number of this user's tombstones that compaction has
+         * deleted. Clients that last synced before it may have missed those deletes.
+         */
+        @Persistent
+        private Long compactedSeq;
+
+        /**
+         * Set once the user's alerts from before change sequence numbers have been given
+         * one; see {@link ChangeSeqBackfill}.
+         */
+        @Persistent
+        private Boolean seqBackfilled;
+
         public UserInfo(User user) {
             this.id = user.getUserId();
             this.email = user.getEmail();
@@ -268,6 +331,28 @@ public class ModelImpl {
         public String getEmail() {
             return email;
         }
+
+        public long getChangeSeq() {
+            return (changeSeq == null) ? 0 : changeSeq;
+        }
+
+        public long getCompactedSeq() {
+            return (compactedSeq == null) ? 0 : compactedSeq;
+        }
+
+        public boolean isSeqBackfilled() {
+            return (seqBackfilled != null) && seqBackfilled;
+        }
+
+        /**
+         * Advances and returns the user's change sequence number. Only call this in a
+         * transaction that has re-read this record, so that numbers are never handed out
+         * twice.
+         */
+        public long nextChangeSeq() {
+            changeSeq = getChangeSeq() + 1;
+            return changeSeq;
+        }
     }
 
     @PersistenceCapable
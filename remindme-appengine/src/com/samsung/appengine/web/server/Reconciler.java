@@ -20,6 +20,8 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.samsung.appengine.jsonrpc.server.EventLog;
+
 /**
  * A simple helper class that allows for merging (or 'reconciling') lists of objects, for use
  * during sync. Extending classes simply need to define a {@link Reconciler#reconcile} method,
@@ -27,8 +29,11 @@ import java.util.Map;
  * comparison is done by {@link Map} key comparison.
  */
 public abstract class Reconciler<T> {
+    private static final EventLog events = EventLog.get("sync");
 
     public Collection<T> reconcileLists(Collection<T> list1, Collection<T> list2) {
+        EventLog.Event event = events.begin("sync.reconcile");
+        int numConflicts = 0;
         Map<T, T> finalMap = new HashMap<T, T>();
 
         for (T o1 : list1) {
@@ -38,6 +43,7 @@ public abstract class Reconciler<T> {
         for (T o2 : list2) {
             if (finalMap.containsKey(o2)) {
                 // collision
+                ++numConflicts;
                 final T o1 = finalMap.remove(o2); // remove previously stored value
                 finalMap.put(o2, reconcile(o1, o2));
             } else {
@@ -45,6 +51,11 @@ public abstract class Reconciler<T> {
             }
         }
 
+        event.put("list1", list1.size())
+                .put("list2", list2.size())
+                .put("conflicts", numConflicts)
+                .put("result", finalMap.size())
+                .end();
         return finalMap.values();
     }
 
@@ -20,28 +20,47 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.jdo.JDOHelper;
 import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.Query;
 import javax.jdo.Transaction;
 import javax.servlet.http.HttpServletRequest;
 
+import org.datanucleus.store.appengine.query.JDOCursorHelper;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.samsung.android.c2dm.server.C2DMessaging;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.users.User;
 import com.samsung.appengine.allshared.AllConfig;
 import com.samsung.appengine.allshared.JsonRpcException;
 import com.samsung.appengine.allshared.JsonRpcMethod;
 import com.samsung.appengine.allshared.RemindMeProtocol;
+import com.samsung.appengine.allshared.TraceId;
 import com.samsung.appengine.javashared.Util;
+import com.samsung.appengine.jsonrpc.server.EventLog;
 import com.samsung.appengine.jsonrpc.server.JsonRpcServlet;
 import com.samsung.appengine.web.server.ModelImpl.Alert;
 import com.samsung.appengine.web.server.ModelImpl.DeviceRegistration;
@@ -57,9 +76,63 @@ public class RemindMeServlet extends JsonRpcServlet {
 
     private static final Logger log = Logger.getLogger(RemindMeServlet.class.getName());
 
-    private static final String PROTOCOL_VERSION = "1";
+    private static final EventLog datastoreEvents = EventLog.get("datastore");
+
+    /**
+     * Servlet init parameter that enables <code>alerts.watch</code> when "true". Off by
+     * default: without asynchronous requests, every open watch holds a request thread, and on
+     * runtimes that don't serve concurrent requests, a whole instance.
+     */
+    public static final String INIT_PARAM_ALERTS_WATCH = "alerts_watch";
+
+    private static final int PROTOCOL_VERSION = RemindMeProtocol.ServerInfo.PROTOCOL_VERSION_BINARY;
     public static final String DEVICE_TYPE_ANDROID = "android";
 
+    /**
+     * Upper bound for <code>alerts.watch</code> timeouts, well within App Engine's 30 second
+     * request deadline.
+     */
+    private static final int MAX_WATCH_TIMEOUT_SECONDS = 20;
+
+    /**
+     * How often a waiting <code>alerts.watch</code> call rechecks the datastore, for changes
+     * made through other instances.
+     */
+    private static final long WATCH_RECHECK_MILLIS = 5000;
+
+    private static final String ATTR_USER_INFO = UserInfo.class.getName();
+
+    private final UserInfoCache mUserInfoCache = new UserInfoCache();
+
+    private boolean mAlertsWatchEnabled;
+
+    /**
+     * Largest page <code>alerts.list</code> returns, whatever limit the client asks for.
+     */
+    private static final int MAX_LIST_LIMIT = 1000;
+
+    /**
+     * The most entities the datastore accepts in a single batch put.
+     */
+    private static final int MAX_BATCH_PUT = 500;
+
+    /**
+     * Time kept in reserve when a sync persists merged alerts, for committing the transaction
+     * and notifying devices.
+     */
+    private static final long SYNC_RESERVE_MILLIS = 3000;
+
+    /**
+     * Once less than this much time is left, device messages are queued instead of sent.
+     */
+    private static final long DEVICE_MESSAGE_RESERVE_MILLIS = 1000;
+
+    @Override
+    public void init() {
+        super.init();
+        mAlertsWatchEnabled = Boolean.parseBoolean(getInitParameter(INIT_PARAM_ALERTS_WATCH));
+    }
+
     @Override
     @SuppressWarnings("all")
     protected boolean isDebug(HttpServletRequest req) {
@@ -71,7 +144,7 @@ public class RemindMeServlet extends JsonRpcServlet {
             return this.getServletContext().getServerInfo().contains("Development");
     }
 
-    @JsonRpcMethod(method = RemindMeProtocol.UserInfo.METHOD)
+    @JsonRpcMethod(method = RemindMeProtocol.UserInfo.METHOD, read_only = true)
     public JSONObject userInfo(final CallContext context) throws JSONException, JsonRpcException {
         String continueUrl = context.getParams().optString(
                 RemindMeProtocol.UserInfo.ARG_LOGIN_CONTINUE, "/");
@@ -88,32 +161,85 @@ public class RemindMeServlet extends JsonRpcServlet {
         return data;
     }
 
-    @JsonRpcMethod(method = RemindMeProtocol.ServerInfo.METHOD)
+    @JsonRpcMethod(method = RemindMeProtocol.ServerInfo.METHOD, read_only = true)
     public JSONObject serverInfo(final CallContext context) throws JSONException, JsonRpcException {
+        // Older clients don't say which version they speak, and only understand "1".
+        int clientVersion = context.getParams().optInt(
+                RemindMeProtocol.ServerInfo.ARG_PROTOCOL_VERSION,
+                RemindMeProtocol.ServerInfo.PROTOCOL_VERSION_JSON);
+        int version = Math.max(RemindMeProtocol.ServerInfo.PROTOCOL_VERSION_JSON,
+                Math.min(clientVersion, PROTOCOL_VERSION));
         JSONObject responseJson = new JSONObject();
-        responseJson.put(RemindMeProtocol.ServerInfo.RET_PROTOCOL_VERSION, PROTOCOL_VERSION);
+        responseJson.put(RemindMeProtocol.ServerInfo.RET_PROTOCOL_VERSION,
+                Integer.toString(version));
         return responseJson;
     }
 
-    @JsonRpcMethod(method = RemindMeProtocol.AlertsList.METHOD, requires_login = true)
+    @JsonRpcMethod(method = RemindMeProtocol.ServerStats.METHOD, requires_admin = true,
+            read_only = true)
+    public JSONObject serverStats(final CallContext context) throws JSONException, JsonRpcException {
+        return getStats().toJSON();
+    }
+
+    @JsonRpcMethod(method = RemindMeProtocol.AlertsList.METHOD, requires_login = true,
+            read_only = true)
     public JSONObject notesList(final CallContext context) throws JSONException, JsonRpcException {
-        UserInfo userInfo = getCurrentUserInfo(context);
+        UserInfo userInfo = getCurrentUserInfoForRead(context);
 
-        // Note: this would be inefficient for large note collections
+        // Large collections should be paged through with limit and cursor. The datastore
+        // breaks ties on modifiedDate by key, so the order is stable across pages.
         Query query = context.getPersistenceManager().newQuery(Alert.class);
         query.setFilter("ownerKey == ownerKeyParam && pendingDelete == false");
+        query.setOrdering("modifiedDate desc");
         query.declareParameters(Key.class.getName() + " ownerKeyParam");
+
+        int limit = context.getParams().optInt(RemindMeProtocol.AlertsList.ARG_LIMIT, 0);
+        if (limit > 0) {
+            query.setRange(0, Math.min(limit, MAX_LIST_LIMIT));
+        }
+
+        String cursorString = context.getParams().optString(
+                RemindMeProtocol.AlertsList.ARG_CURSOR, null);
+        if (cursorString != null) {
+            Map<String, Object> extensions = new HashMap<String, Object>();
+            try {
+                extensions.put(JDOCursorHelper.CURSOR_EXTENSION,
+                        Cursor.fromWebSafeString(cursorString));
+            } catch (IllegalArgumentException e) {
+                throw new JsonRpcException(400, "Invalid cursor.", e);
+            }
+            query.setExtensions(extensions);
+        }
+
         @SuppressWarnings("unchecked")
-        List<Alert> alerts = (List<Alert>) query.execute(userInfo.getKey());
+        List<Alert> alerts = (List<Alert>) executeQuery(query, userInfo.getKey());
+        String nextCursorString = null;
+        if (limit > 0 && alerts.size() >= Math.min(limit, MAX_LIST_LIMIT)) {
+            Cursor nextCursor = JDOCursorHelper.getCursor(alerts);
+            if (nextCursor != null) {
+                nextCursorString = nextCursor.toWebSafeString();
+            }
+        }
+
+        // Summaries and full listings of the same alerts must not share a validator.
+        boolean summary = context.getParams().optBoolean(
+                RemindMeProtocol.AlertsList.ARG_SUMMARY, false);
+        String validator = makeValidator(alerts);
+        if (context.checkNotModified(summary ? "s" + validator : validator)) {
+            return null;
+        }
 
         JSONObject responseJson = new JSONObject();
         try {
             JSONArray notesJson = new JSONArray();
             for (Alert note : alerts) {
-                notesJson.put(note.toJSON());
+                notesJson.put(summary ? note.toSummaryJSON() : note.toJSON());
             }
 
             responseJson.put(RemindMeProtocol.AlertsList.RET_NOTES, notesJson);
+            if (nextCursorString != null) {
+                responseJson.put(RemindMeProtocol.AlertsList.RET_NEXT_CURSOR, nextCursorString);
+            }
         } catch (JSONException e) {
             throw new JsonRpcException(500, "Error serializing response.", e);
         }
@@ -121,20 +247,24 @@ public class RemindMeServlet extends JsonRpcServlet {
         return responseJson;
     }
 
-    @JsonRpcMethod(method = RemindMeProtocol.AlertsGet.METHOD, requires_login = true)
+    @JsonRpcMethod(method = RemindMeProtocol.AlertsGet.METHOD, requires_login = true,
+            read_only = true)
     public JSONObject notesGet(final CallContext context) throws JSONException, JsonRpcException {
-        UserInfo userInfo = getCurrentUserInfo(context);
+        UserInfo userInfo = getCurrentUserInfoForRead(context);
 
         String noteId = context.getParams().getString(RemindMeProtocol.AlertsGet.ARG_ID);
         Key alertKey = Alert.makeKey(userInfo.getId(), noteId);
         try {
-            Alert note = context.getPersistenceManager().getObjectById(Alert.class, alertKey);
+            Alert note = getObjectById(context.getPersistenceManager(), Alert.class, alertKey);
             if (note.isPendingDelete()) {
                 throw new JDOObjectNotFoundException();
             }
             if (!note.getOwnerId().equals(userInfo.getId())) {
                 throw new JsonRpcException(403, "You do not have permission to access this note.");
             }
+            if (context.checkNotModified(makeValidator(Collections.singletonList(note)))) {
+                return null;
+            }
             return (JSONObject) note.toJSON();
         } catch (JDOObjectNotFoundException e) {
             throw new JsonRpcException(404, "Alert with ID " + noteId + " does not exist.");
@@ -157,10 +287,22 @@ public class RemindMeServlet extends JsonRpcServlet {
             throw new JsonRpcException(400, "Invalid note parameter.", e);
         }
 
-        context.getPersistenceManager().makePersistent(note);
+        Transaction tx = context.getPersistenceManager().currentTransaction();
+        try {
+            tx.begin();
+            UserInfo seqUserInfo = getUserInfoForUpdate(context.getPersistenceManager(),
+                    userInfo);
+            note.setChangeSeq(seqUserInfo.nextChangeSeq());
+            context.getPersistenceManager().makePersistent(note);
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        }
         noteJson = (JSONObject) note.toJSON(); // get new parameters like ID, creation date, etc.
 
-        enqueueDeviceMessage(context.getPersistenceManager(), userInfo, clientDeviceId);
+        enqueueDeviceMessage(context, userInfo, clientDeviceId);
         
         JSONObject responseJson = new JSONObject();
         responseJson.put(RemindMeProtocol.AlertsCreate.RET_ALERT, noteJson);
@@ -168,44 +310,193 @@ public class RemindMeServlet extends JsonRpcServlet {
     }
     
 
-    public void enqueueDeviceMessage(PersistenceManager pm,
+    /**
+     * Parks until one of the user's alerts changes or the timeout expires, so that web clients
+     * (which don't get C2DM messages) learn about changes without polling. Servlet 2.5 has no
+     * asynchronous requests, so the call holds its request thread while it waits, which is why
+     * it is off unless {@link #INIT_PARAM_ALERTS_WATCH} enables it. It is marked as a long poll
+     * so parked watches are admitted against their own limit and never take call slots from
+     * syncs or interactive calls.
+     */
+    @JsonRpcMethod(method = RemindMeProtocol.AlertsWatch.METHOD, requires_login = true,
+            long_poll = true)
+    public JSONObject alertsWatch(final CallContext context) throws JSONException, JsonRpcException {
+        if (!mAlertsWatchEnabled) {
+            throw new JsonRpcException(501, "alerts.watch is not enabled on this server.");
+        }
+
+        UserInfo userInfo = getCurrentUserInfo(context);
+
+        // Changes are detected by the user's change sequence number. Older clients that send
+        // only since_date are checked by modified date instead, which misses changes that
+        // carry an older timestamp from the device that made them.
+        long sinceSeq = context.getParams().optLong(RemindMeProtocol.AlertsWatch.ARG_SINCE_SEQ,
+                -1);
+        Date sinceDate = null;
+        try {
+            if (sinceSeq < 0 && context.getParams().has(
+                    RemindMeProtocol.AlertsWatch.ARG_SINCE_DATE)) {
+                sinceDate = Util.parseDateISO8601(context.getParams().getString(
+                        RemindMeProtocol.AlertsWatch.ARG_SINCE_DATE));
+            }
+        } catch (ParseException e) {
+            throw new JsonRpcException(400, "Invalid since_date.", e);
+        }
+        if (sinceSeq < 0 && sinceDate == null) {
+            sinceSeq = readChangeSeq(userInfo);
+        }
+
+        int timeoutSeconds = context.getParams().optInt(RemindMeProtocol.AlertsWatch.ARG_TIMEOUT,
+                MAX_WATCH_TIMEOUT_SECONDS);
+        long deadline = System.currentTimeMillis()
+                + 1000L * Math.max(0, Math.min(timeoutSeconds, MAX_WATCH_TIMEOUT_SECONDS));
+
+        AlertChangeNotifier.Watch watch = AlertChangeNotifier.get().watch(userInfo.getId());
+        try {
+            // A change notified through this instance counts even if the datastore check
+            // can't see it.
+            boolean notified = false;
+            while (true) {
+                Date checkDate = new Date();
+                long currentSeq = readChangeSeq(userInfo);
+                boolean changed = notified || ((sinceDate != null)
+                        ? hasAlertChangesSince(context.getPersistenceManager(), userInfo,
+                                sinceDate)
+                        : currentSeq > sinceSeq);
+                long remaining = deadline - System.currentTimeMillis();
+                if (changed || remaining <= 0) {
+                    JSONObject responseJson = new JSONObject();
+                    responseJson.put(RemindMeProtocol.AlertsWatch.RET_CHANGED, changed);
+                    responseJson.put(RemindMeProtocol.AlertsWatch.RET_NEW_SINCE_DATE,
+                            Util.formatDateISO8601(checkDate));
+                    responseJson.put(RemindMeProtocol.AlertsWatch.RET_NEW_SINCE_SEQ, currentSeq);
+                    return responseJson;
+                }
+                notified = watch.awaitChange(Math.min(remaining, WATCH_RECHECK_MILLIS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JsonRpcException(503, "Watch interrupted.", e);
+        } finally {
+            watch.close();
+        }
+    }
+
+    /**
+     * Reads the user's change sequence number from the datastore, bypassing the cached and
+     * persistence manager copies of the user's record.
+     */
+    private static long readChangeSeq(UserInfo userInfo) {
+        EventLog.Event event = datastoreEvents.begin("datastore.get");
+        boolean found = false;
+        try {
+            Entity entity = DatastoreServiceFactory.getDatastoreService().get(userInfo.getKey());
+            found = true;
+            Object changeSeq = entity.getProperty("changeSeq");
+            return (changeSeq == null) ? 0 : ((Number) changeSeq).longValue();
+        } catch (EntityNotFoundException e) {
+            return 0;
+        } finally {
+            event.put("kind", UserInfo.class.getSimpleName()).put("found", found).end();
+        }
+    }
+
+    private static boolean hasAlertChangesSince(PersistenceManager pm, UserInfo userInfo,
+            Date sinceDate) {
+        // Same filter and ordering as alerts.sync, so no additional index is needed.
+        Query query = pm.newQuery(Alert.class);
+        query.setFilter("ownerKey == ownerKeyParam && modifiedDate > sinceDate");
+        query.setOrdering("modifiedDate desc");
+        query.declareParameters(Key.class.getName() + " ownerKeyParam, java.util.Date sinceDate");
+        query.setRange(0, 1);
+        @SuppressWarnings("unchecked")
+        List<Alert> alerts = (List<Alert>) executeQuery(query, userInfo.getKey(), sinceDate);
+        return !alerts.isEmpty();
+    }
+
+    public void enqueueDeviceMessage(CallContext context,
             UserInfo userInfo, String clientDeviceId) {
 
-        Query query = pm.newQuery(DeviceRegistration.class);
+        // Wake up web clients watching this user's alerts on this instance.
+        AlertChangeNotifier.get().notifyChanged(userInfo.getId());
+
+        Query query = context.getPersistenceManager().newQuery(DeviceRegistration.class);
         query.setFilter("ownerKey == ownerKeyParam");
         query.declareParameters(Key.class.getName() + " ownerKeyParam");
         @SuppressWarnings("unchecked")
         List<DeviceRegistration> registrations = (List<DeviceRegistration>)
-                query.execute(userInfo.getKey());
+                executeQuery(query, userInfo.getKey());
 
+        // The message carries the request's trace ID, so the sync it triggers on each device
+        // can be tied back to this change.
+        final Map<String, String> messageData = new HashMap<String, String>();
+        messageData.put(AllConfig.C2DM_MESSAGE_EXTRA, AllConfig.C2DM_MESSAGE_SYNC);
+        messageData.put(AllConfig.C2DM_ACCOUNT_EXTRA, userInfo.getEmail());
+        messageData.put(TraceId.KEY, context.getTraceId());
+
+        ExecutorService executor = getExecutor();
+        List<Future<?>> pendingSends = new ArrayList<Future<?>>();
         int numDeviceMessages = 0;
+        int numQueuedMessages = 0;
         for (DeviceRegistration registration : registrations) {
             if (registration.getDeviceId().equals(clientDeviceId) ||
                 registration.getRegistrationToken() == null)
                 continue;
             if (DEVICE_TYPE_ANDROID.equals(registration.getDeviceType())) {
                 ++numDeviceMessages;
-                String email = userInfo.getEmail();
-                
-                String collapseKey = Long.toHexString(email.hashCode());
-                
-                try {
-                    C2DMessaging.get(getServletContext()).sendWithRetry(
-                        registration.getRegistrationToken(),
-                        collapseKey,
-                        AllConfig.C2DM_MESSAGE_EXTRA,
-                        AllConfig.C2DM_MESSAGE_SYNC,
-                        AllConfig.C2DM_ACCOUNT_EXTRA,
-                        email);
-                } catch (IOException ex) {
-                    log.severe("Can't send C2DM message, next manual sync " +
-                    		"will get the changes.");
+                final String registrationToken = registration.getRegistrationToken();
+                final String collapseKey = Long.toHexString(userInfo.getEmail().hashCode());
+
+                if (!context.hasTimeRemaining(DEVICE_MESSAGE_RESERVE_MILLIS)) {
+                    // Out of time: let the task queue deliver the rest of the fan-out.
+                    ++numQueuedMessages;
+                    C2DMessaging.get(getServletContext()).sendLater(
+                        registrationToken, collapseKey, messageData);
+                    continue;
                 }
+
+                if (executor != null) {
+                    // Each send blocks on the push service; overlap them.
+                    pendingSends.add(executor.submit(new Runnable() {
+                        public void run() {
+                            sendDeviceMessage(registrationToken, collapseKey, messageData);
+                        }
+                    }));
+                } else {
+                    sendDeviceMessage(registrationToken, collapseKey, messageData);
+                }
+            }
+        }
+
+        for (Future<?> pendingSend : pendingSends) {
+            try {
+                pendingSend.get(Math.max(0, context.getRemainingMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Leave the remaining sends running; the response shouldn't wait for them.
+                log.warning("C2DM sends still running at the request deadline.");
+                break;
+            } catch (ExecutionException e) {
+                log.log(Level.SEVERE, "C2DM send failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
         }
 
         log.info("Scheduled " + numDeviceMessages + " C2DM device messages for user " +
-                userInfo.getEmail() + ".");
+                userInfo.getEmail() + " (" + numQueuedMessages + " queued, trace "
+                + context.getTraceId() + ").");
+    }
+
+    private void sendDeviceMessage(String registrationToken, String collapseKey,
+            Map<String, String> messageData) {
+        try {
+            C2DMessaging.get(getServletContext()).sendWithRetry(
+                registrationToken, collapseKey, messageData);
+        } catch (IOException ex) {
+            log.severe("Can't send C2DM message, next manual sync " +
+            		"will get the changes.");
+        }
     }
 //
 //    @JsonRpcMethod(method = RemindMeProtocol.AlertsEdit.METHOD, requires_login = true)
@@ -241,7 +532,7 @@ public class RemindMeServlet extends JsonRpcServlet {
 //            }
 //        }
 //
-//        enqueueDeviceMessage(context.getPersistenceManager(), userInfo, clientDeviceId);
+//        enqueueDeviceMessage(context, userInfo, clientDeviceId);
 //
 //        noteJson = (JSONObject) note.toJSON(); // get more parameters like ID, creation date, etc.
 //        JSONObject responseJson = new JSONObject();
@@ -266,7 +557,7 @@ public class RemindMeServlet extends JsonRpcServlet {
         Transaction tx = context.getPersistenceManager().currentTransaction();
         try {
             tx.begin();
-            alert = context.getPersistenceManager().getObjectById(Alert.class,
+            alert = getObjectById(context.getPersistenceManager(), Alert.class,
                     Alert.makeKey(userInfo.getId(), noteId));
             if (alert.isPendingDelete()) {
                 throw new JDOObjectNotFoundException();
@@ -276,6 +567,9 @@ public class RemindMeServlet extends JsonRpcServlet {
             }
 
             alert.markForDeletion();
+            UserInfo seqUserInfo = getUserInfoForUpdate(context.getPersistenceManager(),
+                    userInfo);
+            alert.setChangeSeq(seqUserInfo.nextChangeSeq());
             tx.commit();
         } catch (JDOObjectNotFoundException e) {
             throw new JsonRpcException(404, "Alert with ID " + noteId + " does not exist.");
@@ -285,60 +579,99 @@ public class RemindMeServlet extends JsonRpcServlet {
             }
         }
 
-        enqueueDeviceMessage(context.getPersistenceManager(), userInfo, clientDeviceId);
+        enqueueDeviceMessage(context, userInfo, clientDeviceId);
         return null;
     }
 
-    @JsonRpcMethod(method = RemindMeProtocol.AlertsSync.METHOD, requires_login = true)
+    @JsonRpcMethod(method = RemindMeProtocol.AlertsSync.METHOD, requires_login = true,
+            background = true)
     public JSONObject notesSync(final CallContext context) throws JSONException, JsonRpcException {
         // This method should return a list of updated notes since a current
         // date, optionally reconciling/merging a set of a local notes.
         String clientDeviceId = null;
         UserInfo userInfo = getCurrentUserInfo(context);
-        Date sinceDate;
+        Date sinceDate = null;
+        long sinceSeq;
 
         try {
             clientDeviceId = context.getParams().optString(RemindMeProtocol.ARG_CLIENT_DEVICE_ID);
-            sinceDate = Util.parseDateISO8601(context.getParams().getString(RemindMeProtocol.AlertsSync.ARG_SINCE_DATE));
+            sinceSeq = context.getParams().optLong(RemindMeProtocol.AlertsSync.ARG_SINCE_SEQ, -1);
+            if (sinceSeq < 0 || context.getParams().has(RemindMeProtocol.AlertsSync.ARG_SINCE_DATE)) {
+                sinceDate = Util.parseDateISO8601(context.getParams().getString(RemindMeProtocol.AlertsSync.ARG_SINCE_DATE));
+            }
         } catch (ParseException e) {
             throw new JsonRpcException(400, "Invalid since_date.", e);
         } catch (JSONException e) {
             throw new JsonRpcException(400, "Invalid since_date.", e);
         }
 
+        // Tombstones older than the retention horizon get compacted away, so a client that
+        // last synced before it can't learn about every delete from a delta. Clients that
+        // send only since_seq are checked against the user's compacted sequence number below.
+        boolean fullResync = sinceDate != null && sinceDate.getTime() > 0
+                && sinceDate.getTime() < System.currentTimeMillis()
+                        - TombstoneCompactionServlet.getRetentionMillis(getServletContext());
+        if (fullResync) {
+            sinceDate = new Date(0);
+            sinceSeq = -1;
+        }
+
         JSONObject responseJson = new JSONObject();
         JSONArray notesJson = new JSONArray();
         Transaction tx = context.getPersistenceManager().currentTransaction();
         Date newSinceDate = new Date();
+        long newSinceSeq;
+        boolean more = false;
         try {
             tx.begin();
+            UserInfo seqUserInfo = getUserInfoForUpdate(context.getPersistenceManager(),
+                    userInfo);
+            if (!seqUserInfo.isSeqBackfilled()) {
+                // Once per user: number the alerts from before change sequence numbers, in a
+                // transaction of its own, then start over so the queries below see them.
+                // Nothing has been written yet.
+                tx.rollback();
+                ChangeSeqBackfill.run(userInfo.getKey());
+                context.getPersistenceManager().evict(seqUserInfo);
+                tx.begin();
+                seqUserInfo = getUserInfoForUpdate(context.getPersistenceManager(), userInfo);
+            }
+            if (sinceSeq >= 0 && sinceSeq < seqUserInfo.getCompactedSeq()) {
+                fullResync = true;
+                sinceDate = new Date(0);
+                sinceSeq = -1;
+            }
+
             List<Alert> localAlerts = new ArrayList<Alert>();
             if (context.getParams().has(RemindMeProtocol.AlertsSync.ARG_LOCAL_ALERTS)) {
                 JSONArray localChangesJson = context.getParams().getJSONArray(RemindMeProtocol.AlertsSync.ARG_LOCAL_ALERTS);
-                for (int i = 0; i < localChangesJson.length(); i++) {
-                    try {
+                List<JSONObject> localNotesJson = new ArrayList<JSONObject>(
+                        localChangesJson.length());
+                List<Key> existingAlertKeys = new ArrayList<Key>();
+                try {
+                    for (int i = 0; i < localChangesJson.length(); i++) {
                         JSONObject noteJson = localChangesJson.getJSONObject(i);
-
+                        localNotesJson.add(noteJson);
                         if (noteJson.has("id")) {
-                            Key existingAlertKey = Alert.makeKey(userInfo.getId(),
-                                    noteJson.get("id").toString());
-                            try {
-                                Alert existingAlert = (Alert) context.getPersistenceManager().getObjectById(
-                                        Alert.class, existingAlertKey);
-                                if (!existingAlert.getOwnerId().equals(userInfo.getId())) {
-                                    // User doesn't have permission to edit this note. Instead of
-                                    // throwing an error, just re-create it on the server side.
-                                    //throw new JsonRpcException(403,
-                                    //        "You do not have permission to modify this note.");
-                                    noteJson.remove("id");
-                                }
-                            } catch (JDOObjectNotFoundException e) {
-                                // Alert doesn't exist, instead of throwing an error,
-                                // just re-create the note on the server side (unassign its ID).
-                                //throw new JsonRpcException(404, "Alert with ID "
-                                //        + noteJson.get("id").toString() + " does not exist.");
-                                noteJson.remove("id");
-                            }
+                            existingAlertKeys.add(Alert.makeKey(userInfo.getId(),
+                                    noteJson.get("id").toString()));
+                        }
+                    }
+                } catch (JSONException e) {
+                    throw new JsonRpcException(400, "Invalid local note content.", e);
+                }
+
+                // Look up all the alerts the client claims to have in one round trip. Keys are
+                // built under the current user, so any that exist belong to them.
+                Set<Key> foundKeys = getExistingKeys(existingAlertKeys);
+
+                for (JSONObject noteJson : localNotesJson) {
+                    try {
+                        if (noteJson.has("id") && !foundKeys.contains(Alert.makeKey(
+                                userInfo.getId(), noteJson.get("id").toString()))) {
+                            // Alert doesn't exist, instead of throwing an error,
+                            // just re-create the note on the server side (unassign its ID).
+                            noteJson.remove("id");
                         }
 
                         noteJson.put("owner_id", userInfo.getId());
@@ -350,36 +683,80 @@ public class RemindMeServlet extends JsonRpcServlet {
                 }
             }
 
-            // Query server-side note changes.
+            // Query server-side note changes. Sequence numbers are assigned in the same
+            // transactions as the writes, so unlike dates they can't miss or repeat a change.
             Query query = context.getPersistenceManager().newQuery(Alert.class);
-            query.setFilter("ownerKey == ownerKeyParam && modifiedDate > sinceDate");
-            query.setOrdering("modifiedDate desc");
-            query.declareParameters(Key.class.getName() + " ownerKeyParam, java.util.Date sinceDate");
-            @SuppressWarnings("unchecked")
-            List<Alert> alerts = (List<Alert>) query.execute(userInfo.getKey(), sinceDate);
+            List<Alert> alerts;
+            if (sinceSeq >= 0) {
+                query.setFilter("ownerKey == ownerKeyParam && changeSeq > sinceSeqParam");
+                query.setOrdering("changeSeq asc");
+                query.declareParameters(Key.class.getName() + " ownerKeyParam, Long sinceSeqParam");
+                @SuppressWarnings("unchecked")
+                List<Alert> result = (List<Alert>) executeQuery(query, userInfo.getKey(),
+                        Long.valueOf(sinceSeq));
+                alerts = result;
+            } else {
+                query.setFilter("ownerKey == ownerKeyParam && modifiedDate > sinceDate");
+                query.setOrdering("modifiedDate desc");
+                query.declareParameters(Key.class.getName() + " ownerKeyParam, java.util.Date sinceDate");
+                @SuppressWarnings("unchecked")
+                List<Alert> result = (List<Alert>) executeQuery(query, userInfo.getKey(),
+                        sinceDate);
+                alerts = result;
+            }
 
             // Now merge the lists and conflicting objects.
+            final List<Alert> conflictLosers = new ArrayList<Alert>();
+            final Set<Alert> conflictWinners = Collections.newSetFromMap(
+                    new IdentityHashMap<Alert, Boolean>());
             Reconciler<Alert> reconciler = new Reconciler<Alert>() {
                 @Override
                 public Alert reconcile(Alert o1, Alert o2) {
                     boolean pick1 = o1.getModifiedDate().after(o2.getModifiedDate());
-
-                    // Make sure only the chosen version of the note is persisted
-                    context.getPersistenceManager().makeTransient(pick1 ? o2 : o1);
-
+                    conflictLosers.add(pick1 ? o2 : o1);
+                    conflictWinners.add(pick1 ? o1 : o2);
                     return pick1 ? o1 : o2;
                 }
             };
 
-            Collection<Alert> reconciledAlerts = reconciler.reconcileLists(alerts, localAlerts);
+            List<Alert> reconciledAlerts = new ArrayList<Alert>(
+                    reconciler.reconcileLists(alerts, localAlerts));
 
-            for (Alert alert : reconciledAlerts) {
-                // Save the note.
-                context.getPersistenceManager().makePersistent(alert);
+            // Make sure only the chosen version of each note is persisted
+            context.getPersistenceManager().makeTransientAll(conflictLosers);
 
-                // Put it in the response output.
-                notesJson.put(alert.toJSON());
+            // Alert.equals() can't tell new alerts apart, so match by identity.
+            Set<Alert> localAlertSet = Collections.newSetFromMap(
+                    new IdentityHashMap<Alert, Boolean>());
+            localAlertSet.addAll(localAlerts);
+
+            for (int start = 0; start < reconciledAlerts.size(); start += MAX_BATCH_PUT) {
+                if (!context.hasTimeRemaining(SYNC_RESERVE_MILLIS)) {
+                    // Out of time: commit what has been merged so far, and have the client
+                    // come back for the rest rather than lose the whole batch.
+                    more = true;
+                    break;
+                }
+
+                // Save the notes, one batch put per chunk. Alerts that came from the client
+                // are changes, and take the next numbers in the user's change sequence. So
+                // does the server's version when it wins a conflict, so that the outcome of
+                // the merge reaches every device as a change.
+                List<Alert> batch = reconciledAlerts.subList(start,
+                        Math.min(start + MAX_BATCH_PUT, reconciledAlerts.size()));
+                for (Alert alert : batch) {
+                    if (localAlertSet.contains(alert) || conflictWinners.contains(alert)) {
+                        alert.setChangeSeq(seqUserInfo.nextChangeSeq());
+                    }
+                }
+                makePersistentAll(context.getPersistenceManager(), batch);
+
+                // Put them in the response output.
+                for (Alert alert : batch) {
+                    notesJson.put(alert.toJSON());
+                }
             }
+            newSinceSeq = seqUserInfo.getChangeSeq();
             tx.commit();
         } finally {
             if (tx.isActive()) {
@@ -387,11 +764,29 @@ public class RemindMeServlet extends JsonRpcServlet {
             }
         }
 
-        enqueueDeviceMessage(context.getPersistenceManager(), userInfo, clientDeviceId);
+        enqueueDeviceMessage(context, userInfo, clientDeviceId);
 
         responseJson.put(RemindMeProtocol.AlertsSync.RET_ALERTS, notesJson);
-        responseJson.put(RemindMeProtocol.AlertsSync.RET_NEW_SINCE_DATE,
-                Util.formatDateISO8601(newSinceDate));
+        if (fullResync) {
+            responseJson.put(RemindMeProtocol.AlertsSync.RET_FULL_RESYNC, true);
+        }
+        if (more) {
+            // Nothing past the original since_date or since_seq is known to have been
+            // delivered.
+            responseJson.put(RemindMeProtocol.AlertsSync.RET_MORE, true);
+            if (sinceDate != null) {
+                responseJson.put(RemindMeProtocol.AlertsSync.RET_NEW_SINCE_DATE,
+                        Util.formatDateISO8601(sinceDate));
+            }
+            if (sinceSeq >= 0) {
+                responseJson.put(RemindMeProtocol.AlertsSync.RET_NEW_SINCE_SEQ, sinceSeq);
+            }
+        } else {
+            responseJson.put(RemindMeProtocol.AlertsSync.RET_NEW_SINCE_DATE,
+                    Util.formatDateISO8601(newSinceDate));
+            responseJson.put(RemindMeProtocol.AlertsSync.RET_NEW_SINCE_SEQ,
+                    newSinceSeq);
+        }
         return responseJson;
     }
 
@@ -417,7 +812,7 @@ public class RemindMeServlet extends JsonRpcServlet {
             query.declareParameters(Key.class.getName() + " ownerKeyParam, String deviceIdParam");
             @SuppressWarnings("unchecked")
             List<DeviceRegistration> registrations = (List<DeviceRegistration>)
-                    query.execute(userInfo.getKey(), registrationParam.getDeviceId());
+                    executeQuery(query, userInfo.getKey(), registrationParam.getDeviceId());
 
             // Update all existing registration tokens.
             boolean registeredForUser = false;
@@ -464,15 +859,13 @@ public class RemindMeServlet extends JsonRpcServlet {
             query.declareParameters(Key.class.getName() + " ownerKeyParam, String deviceIdParam");
             @SuppressWarnings("unchecked")
             List<DeviceRegistration> registrations = (List<DeviceRegistration>)
-                    query.execute(userInfo.getKey(), deviceId);
+                    executeQuery(query, userInfo.getKey(), deviceId);
 
             if (registrations.size() == 0) {
                 throw new JsonRpcException(404, "Device with provided ID is not registered.");
             }
 
-            for (DeviceRegistration registration : registrations) {
-                context.getPersistenceManager().deletePersistent(registration);
-            }
+            deletePersistentAll(context.getPersistenceManager(), registrations);
             tx.commit();
         } finally {
             if (tx.isActive()) {
@@ -495,11 +888,9 @@ public class RemindMeServlet extends JsonRpcServlet {
             query.declareParameters(Key.class.getName() + " ownerKeyParam");
             @SuppressWarnings("unchecked")
             List<DeviceRegistration> registrations = (List<DeviceRegistration>)
-                    query.execute(userInfo.getKey());
+                    executeQuery(query, userInfo.getKey());
 
-            for (DeviceRegistration registration : registrations) {
-                context.getPersistenceManager().deletePersistent(registration);
-            }
+            deletePersistentAll(context.getPersistenceManager(), registrations);
             tx.commit();
         } finally {
             if (tx.isActive()) {
@@ -510,20 +901,154 @@ public class RemindMeServlet extends JsonRpcServlet {
         return null;
     }
 
+    /**
+     * Computes a cheap fingerprint of a set of alerts, for conditional responses: the count,
+     * the latest modification date, and a hash over every alert's ID and modification date.
+     * Any create, edit or delete changes it, and computing it doesn't require serializing the
+     * alerts.
+     */
+    private static String makeValidator(Collection<Alert> alerts) {
+        long maxModified = 0;
+        long hash = 0;
+        for (Alert alert : alerts) {
+            long modified = alert.getModifiedDate().getTime();
+            maxModified = Math.max(maxModified, modified);
+            // Order-independent, since query results have no guaranteed order.
+            hash += (alert.getKey().hashCode() * 31L + modified) * 0x9E3779B97F4A7C15L;
+        }
+        return alerts.size() + "-" + Long.toString(maxModified, 36) + "-"
+                + Long.toString(hash, 36);
+    }
+
+    /**
+     * Returns the signed-in user's record, creating it on first sign-in. It is looked up once
+     * per batch and cached in the call context, and comes from {@link #mUserInfoCache} when
+     * possible, in which case it is a transient copy.
+     */
     public UserInfo getCurrentUserInfo(final CallContext context) {
+        return getCurrentUserInfo(context, true);
+    }
+
+    /**
+     * Like {@link #getCurrentUserInfo}, but never writes, for <code>read_only</code> methods:
+     * a user without a record yet gets an unsaved one, which owns no alerts.
+     */
+    private UserInfo getCurrentUserInfoForRead(final CallContext context) {
+        return getCurrentUserInfo(context, false);
+    }
+
+    private UserInfo getCurrentUserInfo(final CallContext context, boolean create) {
         if (!context.getUserService().isUserLoggedIn())
             return null;
 
+        UserInfo userInfo = (UserInfo) context.getAttribute(ATTR_USER_INFO);
+        if (userInfo != null)
+            return userInfo;
+
         User user = context.getUserService().getCurrentUser();
 
+        userInfo = mUserInfoCache.get(user.getUserId());
+        if (userInfo == null) {
+            try {
+                userInfo = getObjectById(context.getPersistenceManager(), UserInfo.class,
+                        user.getUserId());
+            } catch (JDOObjectNotFoundException e) {
+                if (!create)
+                    return new UserInfo(user);
+                userInfo = new UserInfo(user);
+                context.getPersistenceManager().makePersistent(userInfo);
+            }
+
+            // Only cached once it is known to be stored.
+            mUserInfoCache.put(userInfo);
+        }
+        context.setAttribute(ATTR_USER_INFO, userInfo);
+        return userInfo;
+    }
+
+    /**
+     * Runs a query with the given parameters, recording a datastore event for it.
+     */
+    private static Object executeQuery(Query query, Object... params) {
+        EventLog.Event event = datastoreEvents.begin("datastore.query");
         try {
-            UserInfo userInfo = context.getPersistenceManager().getObjectById(UserInfo.class,
-                    user.getUserId());
-            return userInfo;
-        } catch (JDOObjectNotFoundException e) {
-            UserInfo userInfo = new UserInfo(user);
-            context.getPersistenceManager().makePersistent(userInfo);
-            return userInfo;
+            return query.executeWithArray(params);
+        } finally {
+            if (event.isEnabled()) {
+                event.put("query", query.toString()).end();
+            }
+        }
+    }
+
+    /**
+     * Reads the user's record in the current transaction, for handing out change sequence
+     * numbers from it. The record is the root of the user's entity group, so concurrent
+     * writers then conflict at commit instead of reusing numbers. The record returned by
+     * {@link #getCurrentUserInfo} may be a cached copy and must not be used for this.
+     */
+    private static UserInfo getUserInfoForUpdate(PersistenceManager pm, UserInfo userInfo) {
+        // The persistence manager may already hold the record, read outside the transaction;
+        // evicting it makes the lookup below read it again, inside the transaction.
+        if (JDOHelper.getPersistenceManager(userInfo) == pm) {
+            pm.evict(userInfo);
+        }
+        return getObjectById(pm, UserInfo.class, userInfo.getId());
+    }
+
+    /**
+     * Saves the given objects with a single batch put, recording a datastore event for it.
+     */
+    private static void makePersistentAll(PersistenceManager pm, Collection<?> objects) {
+        EventLog.Event event = datastoreEvents.begin("datastore.batch_put");
+        try {
+            pm.makePersistentAll(objects);
+        } finally {
+            event.put("count", objects.size()).end();
+        }
+    }
+
+    /**
+     * Deletes the given objects with a single batch delete, recording a datastore event for it.
+     */
+    private static void deletePersistentAll(PersistenceManager pm, Collection<?> objects) {
+        EventLog.Event event = datastoreEvents.begin("datastore.batch_delete");
+        try {
+            pm.deletePersistentAll(objects);
+        } finally {
+            event.put("count", objects.size()).end();
+        }
+    }
+
+    /**
+     * Returns which of the given keys exist, using a single batch get.
+     */
+    private static Set<Key> getExistingKeys(Collection<Key> keys) {
+        if (keys.isEmpty())
+            return Collections.emptySet();
+
+        EventLog.Event event = datastoreEvents.begin("datastore.batch_get");
+        int found = 0;
+        try {
+            Set<Key> existing = DatastoreServiceFactory.getDatastoreService().get(keys).keySet();
+            found = existing.size();
+            return existing;
+        } finally {
+            event.put("keys", keys.size()).put("found", found).end();
+        }
+    }
+
+    /**
+     * Looks up an object by key, recording a datastore event for the lookup.
+     */
+    private static <T> T getObjectById(PersistenceManager pm, Class<T> cls, Object key) {
+        EventLog.Event event = datastoreEvents.begin("datastore.get");
+        boolean found = false;
+        try {
+            T object = pm.getObjectById(cls, key);
+            found = true;
+            return object;
+        } finally {
+            event.put("kind", cls.getSimpleName()).put("found", found).end();
         }
     }
 }
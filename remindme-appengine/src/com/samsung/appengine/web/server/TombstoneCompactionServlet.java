@@ -0,0 +1,314 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.web.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.labs.taskqueue.QueueFactory;
+import com.google.appengine.api.labs.taskqueue.TaskOptions;
+
+/**
+ * Hard-deletes alert tombstones (alerts marked <code>pendingDelete</code>) once they were
+ * deleted longer than the retention horizon ago, so that listings and syncs no longer scan
+ * past them. Started daily by cron; each request deletes batches until its time budget runs
+ * out, then queues a task that continues from its cursor. Tombstones are aged by their
+ * server-assigned <code>deletedDate</code>; older ones that lack it are given one first.
+ *
+ * Clients that last synced before the horizon, or before the highest change sequence number
+ * compacted for their user, may have missed deletes that are now gone, so
+ * <code>alerts.sync</code> makes them resync fully.
+ */
+@SuppressWarnings("serial")
+public class TombstoneCompactionServlet extends HttpServlet {
+
+    private static final Logger log = Logger.getLogger(TombstoneCompactionServlet.class.getName());
+
+    public static final String URI = "/tasks/compact-tombstones";
+
+    /**
+     * Context parameter: the number of days tombstones are kept before compaction.
+     */
+    public static final String CONTEXT_PARAM_RETENTION_DAYS = "tombstone_retention_days";
+
+    private static final int DEFAULT_RETENTION_DAYS = 30;
+
+    private static final String PARAM_CURSOR = "cursor";
+
+    /**
+     * Continuation tasks set this to {@link #PHASE_STAMP} once every expired tombstone has been
+     * deleted.
+     */
+    private static final String PARAM_PHASE = "phase";
+
+    private static final String PHASE_STAMP = "stamp";
+
+    /**
+     * Stands for the sequence number of a tombstone written before sequence numbers existed.
+     */
+    private static final long UNKNOWN_SEQ = Long.MAX_VALUE;
+
+    private static final int MAX_RECORD_ATTEMPTS = 3;
+
+    private static final String ALERT_KIND = "ModelImpl$Alert";
+
+    private static final int BATCH_SIZE = 200;
+
+    /**
+     * Time a request spends deleting before handing over to a continuation task, well within
+     * the 30 second request deadline.
+     */
+    private static final long TIME_BUDGET_MILLIS = 20000;
+
+    /**
+     * Returns how long tombstones are kept, from the web app's context parameters.
+     */
+    public static long getRetentionMillis(ServletContext context) {
+        int days = DEFAULT_RETENTION_DAYS;
+        String retentionDays = context.getInitParameter(CONTEXT_PARAM_RETENTION_DAYS);
+        if (retentionDays != null) {
+            try {
+                days = Integer.parseInt(retentionDays.trim());
+            } catch (NumberFormatException e) {
+                log.warning("Invalid " + CONTEXT_PARAM_RETENTION_DAYS + ": " + retentionDays);
+            }
+        }
+        return days * 24L * 60 * 60 * 1000;
+    }
+
+    /**
+     * Cron requests use GET.
+     */
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        compact(req, resp);
+    }
+
+    /**
+     * Continuation tasks use POST.
+     */
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        compact(req, resp);
+    }
+
+    private void compact(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        Date horizon = new Date(startMillis - getRetentionMillis(getServletContext()));
+
+        boolean stamping = PHASE_STAMP.equals(req.getParameter(PARAM_PHASE));
+        Cursor cursor = null;
+        String cursorString = req.getParameter(PARAM_CURSOR);
+        if (cursorString != null) {
+            try {
+                cursor = Cursor.fromWebSafeString(cursorString);
+            } catch (IllegalArgumentException e) {
+                // Not retriable; the next cron run starts over.
+                log.warning("Invalid compaction cursor, dropping task: " + cursorString);
+                resp.setStatus(200);
+                return;
+            }
+        }
+
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        int numDeleted = 0;
+        int numStamped = 0;
+        boolean done = false;
+        while (System.currentTimeMillis() - startMillis < TIME_BUDGET_MILLIS) {
+            FetchOptions fetchOptions = FetchOptions.Builder.withLimit(BATCH_SIZE);
+            if (cursor != null) {
+                fetchOptions.startCursor(cursor);
+            }
+
+            QueryResultList<Entity> tombstones = datastore.prepare(
+                    stamping ? makeUnstampedQuery(horizon) : makeExpiredQuery(horizon))
+                    .asQueryResultList(fetchOptions);
+            if (stamping) {
+                numStamped += stampDeletedDates(datastore, tombstones, new Date(startMillis));
+            } else {
+                numDeleted += deleteTombstones(datastore, tombstones);
+            }
+
+            cursor = tombstones.getCursor();
+            if (tombstones.size() < BATCH_SIZE || cursor == null) {
+                if (stamping) {
+                    done = true;
+                    break;
+                }
+                stamping = true;
+                cursor = null;
+            }
+        }
+
+        if (!done) {
+            TaskOptions task = TaskOptions.Builder.url(URI);
+            if (stamping) {
+                task.param(PARAM_PHASE, PHASE_STAMP);
+            }
+            if (cursor != null) {
+                task.param(PARAM_CURSOR, cursor.toWebSafeString());
+            }
+            QueueFactory.getDefaultQueue().add(task);
+        }
+
+        log.info("Deleted " + numDeleted + " tombstones of alerts deleted before " + horizon
+                + " and stamped " + numStamped + " older ones in "
+                + (System.currentTimeMillis() - startMillis) + "ms"
+                + (done ? "" : ", continuing in a new task"));
+        resp.setContentType("text/plain");
+        resp.getWriter().write("Deleted " + numDeleted);
+    }
+
+    /**
+     * Tombstones whose alerts were deleted before the horizon.
+     */
+    private static Query makeExpiredQuery(Date horizon) {
+        Query query = new Query(ALERT_KIND);
+        query.addFilter("pendingDelete", Query.FilterOperator.EQUAL, true);
+        query.addFilter("deletedDate", Query.FilterOperator.LESS_THAN, horizon);
+        return query;
+    }
+
+    /**
+     * Candidates for tombstones written before deletedDate was stored, which the expired
+     * query can't see. Only the ones actually lacking the property are stamped.
+     */
+    private static Query makeUnstampedQuery(Date horizon) {
+        Query query = new Query(ALERT_KIND);
+        query.addFilter("pendingDelete", Query.FilterOperator.EQUAL, true);
+        query.addFilter("modifiedDate", Query.FilterOperator.LESS_THAN, horizon);
+        return query;
+    }
+
+    /**
+     * Gives tombstones without a deletion date the current time as one; their real deletion
+     * time is unknown, so they are kept for a full horizon from now.
+     */
+    private static int stampDeletedDates(DatastoreService datastore, List<Entity> tombstones,
+            Date now) {
+        List<Entity> unstamped = new ArrayList<Entity>();
+        for (Entity tombstone : tombstones) {
+            if (!tombstone.hasProperty("deletedDate")) {
+                tombstone.setProperty("deletedDate", now);
+                unstamped.add(tombstone);
+            }
+        }
+        if (!unstamped.isEmpty()) {
+            datastore.put(unstamped);
+        }
+        return unstamped.size();
+    }
+
+    /**
+     * Deletes the given tombstones, after recording the highest change sequence number among
+     * each owner's on the owner's record, so that <code>alerts.sync</code> can tell which
+     * clients missed them. Tombstones whose owner couldn't be updated are kept for the next
+     * run.
+     */
+    private static int deleteTombstones(DatastoreService datastore, List<Entity> tombstones) {
+        Map<Key, Long> compactedSeqs = new HashMap<Key, Long>();
+        for (Entity tombstone : tombstones) {
+            Key ownerKey = tombstone.getKey().getParent();
+            Object changeSeq = tombstone.getProperty("changeSeq");
+            long seq = (changeSeq == null) ? UNKNOWN_SEQ : ((Number) changeSeq).longValue();
+            Long current = compactedSeqs.get(ownerKey);
+            if (current == null || seq > current) {
+                compactedSeqs.put(ownerKey, seq);
+            }
+        }
+
+        Set<Key> recordedOwners = new HashSet<Key>();
+        for (Map.Entry<Key, Long> entry : compactedSeqs.entrySet()) {
+            if (recordCompactedSeq(datastore, entry.getKey(), entry.getValue())) {
+                recordedOwners.add(entry.getKey());
+            }
+        }
+
+        // Each alert is in its owner's entity group, so this runs outside a transaction.
+        List<Key> keys = new ArrayList<Key>(tombstones.size());
+        for (Entity tombstone : tombstones) {
+            if (recordedOwners.contains(tombstone.getKey().getParent())) {
+                keys.add(tombstone.getKey());
+            }
+        }
+        datastore.delete(keys);
+        return keys.size();
+    }
+
+    /**
+     * Raises the owner's <code>compactedSeq</code> to the given sequence number, or to the
+     * owner's current one if it is {@link #UNKNOWN_SEQ}. Returns false if the owner's record
+     * kept changing underneath.
+     */
+    private static boolean recordCompactedSeq(DatastoreService datastore, Key ownerKey,
+            long seq) {
+        for (int attempt = 0; attempt < MAX_RECORD_ATTEMPTS; attempt++) {
+            Transaction txn = datastore.beginTransaction();
+            try {
+                Entity owner = datastore.get(txn, ownerKey);
+                if (seq == UNKNOWN_SEQ) {
+                    Object changeSeq = owner.getProperty("changeSeq");
+                    seq = (changeSeq == null) ? 0 : ((Number) changeSeq).longValue();
+                }
+                Object compactedSeq = owner.getProperty("compactedSeq");
+                if (compactedSeq == null || ((Number) compactedSeq).longValue() < seq) {
+                    owner.setProperty("compactedSeq", seq);
+                    datastore.put(txn, owner);
+                }
+                txn.commit();
+                return true;
+            } catch (EntityNotFoundException e) {
+                // No owner left to sync; the tombstones can simply go.
+                return true;
+            } catch (ConcurrentModificationException e) {
+                log.info("Retrying compactedSeq update for " + ownerKey);
+            } finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+        log.warning("Keeping tombstones of " + ownerKey + " until the next run");
+        return false;
+    }
+}
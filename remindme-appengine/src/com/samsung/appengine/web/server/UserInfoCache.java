@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.web.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.jsr107cache.Cache;
+import net.sf.jsr107cache.CacheException;
+import net.sf.jsr107cache.CacheManager;
+
+import com.google.appengine.api.memcache.jsr107cache.GCacheFactory;
+import com.samsung.appengine.web.server.ModelImpl.UserInfo;
+
+/**
+ * Caches the users' records by user ID, so that looking up the signed-in user doesn't cost a
+ * datastore read on every call. The first level is a bounded LRU map per instance; the second
+ * is memcache, through the JCache API, shared by all instances.
+ *
+ * Only the ID and email are cached, and neither changes once a record is created, so entries
+ * are never invalidated. The change sequence counter is not cached; it is always read in the
+ * transaction that advances it. Memcache failures are logged and treated as misses.
+ */
+class UserInfoCache {
+    private static final Logger log = Logger.getLogger(UserInfoCache.class.getName());
+
+    private static final String KEY_PREFIX = "user:";
+
+    private static final int MAX_LOCAL_ENTRIES = 1000;
+
+    /**
+     * Memcache entries expire after a day, only to bound the space used by inactive users.
+     */
+    private static final int EXPIRATION_SECONDS = 24 * 60 * 60;
+
+    private final Map<String, String> mLocal = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_LOCAL_ENTRIES;
+                }
+            });
+
+    private final Cache mShared;
+
+    public UserInfoCache() {
+        Cache shared = null;
+        try {
+            Map<Object, Object> properties = new HashMap<Object, Object>();
+            properties.put(GCacheFactory.EXPIRATION_DELTA, EXPIRATION_SECONDS);
+            shared = CacheManager.getInstance().getCacheFactory().createCache(properties);
+        } catch (CacheException e) {
+            log.log(Level.WARNING, "Couldn't create the memcache cache, caching locally only", e);
+        }
+        mShared = shared;
+    }
+
+    /**
+     * Returns a transient copy of the cached record for the given user, or null.
+     */
+    public UserInfo get(String userId) {
+        String email = mLocal.get(userId);
+        if (email == null && mShared != null) {
+            try {
+                email = (String) mShared.get(KEY_PREFIX + userId);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Memcache get failed", e);
+            }
+            if (email != null) {
+                mLocal.put(userId, email);
+            }
+        }
+        return (email == null) ? null : new UserInfo(userId, email);
+    }
+
+    /**
+     * Caches the given record, which must already be stored.
+     */
+    @SuppressWarnings("unchecked")
+    public void put(UserInfo userInfo) {
+        if (userInfo.getEmail() == null)
+            return;
+
+        mLocal.put(userInfo.getId(), userInfo.getEmail());
+        if (mShared != null) {
+            try {
+                mShared.put(KEY_PREFIX + userInfo.getId(), userInfo.getEmail());
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Memcache put failed", e);
+            }
+        }
+    }
+}
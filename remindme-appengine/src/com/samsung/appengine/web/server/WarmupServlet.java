@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.samsung.appengine.web.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.samsung.android.c2dm.server.C2DMConfig;
+import com.samsung.android.c2dm.server.C2DMessaging;
+import com.samsung.appengine.javashared.JsonSerializable;
+import com.samsung.appengine.jsonrpc.server.JsonRpcServlet;
+import com.samsung.appengine.web.server.ModelImpl.Alert;
+import com.samsung.appengine.web.server.ModelImpl.DeviceRegistration;
+import com.samsung.appengine.web.server.ModelImpl.UserInfo;
+
+/**
+ * Pays the cold start costs of a new instance - building the PMF, loading the JDO metadata
+ * of each persistent class, initializing the JSON classes and fetching the C2DM auth token -
+ * before any user request arrives. Runs when the servlet is loaded at startup, and again for
+ * App Engine's <code>/_ah/warmup</code> request in case loading happened lazily.
+ */
+@SuppressWarnings("serial")
+public class WarmupServlet extends HttpServlet {
+
+    private static final Logger log = Logger.getLogger(WarmupServlet.class.getName());
+
+    private static final Class<?>[] PERSISTENT_CLASSES = new Class<?>[] {
+            Alert.class, UserInfo.class, DeviceRegistration.class, C2DMConfig.class };
+
+    private boolean warmedUp;
+
+    @Override
+    public void init() throws ServletException {
+        warmUp();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        warmUp();
+        resp.setContentType("text/plain");
+        resp.getWriter().write("OK");
+    }
+
+    /**
+     * Runs the warmup steps once. Failures are logged rather than thrown: a step that fails
+     * here will simply be paid for by the first request that needs it.
+     */
+    private synchronized void warmUp() {
+        if (warmedUp)
+            return;
+        warmedUp = true;
+
+        long startMillis = System.currentTimeMillis();
+        PersistenceManager pm = JsonRpcServlet.getPersistenceManagerFactory(getServletContext())
+                .getPersistenceManager();
+        try {
+            JSONArray probeJson = new JSONArray();
+            for (Class<?> persistentClass : PERSISTENT_CLASSES) {
+                Query query = pm.newQuery(persistentClass);
+                query.setRange(0, 1);
+                @SuppressWarnings("unchecked")
+                List<Object> results = (List<Object>) query.execute();
+                for (Object result : results) {
+                    if (result instanceof JsonSerializable)
+                        probeJson.put(((JsonSerializable) result).toJSON());
+                }
+            }
+
+            // Runs the JSON classes' static initialization and serialization paths.
+            new JSONObject().put("probe", probeJson).toString();
+        } catch (JSONException e) {
+            log.log(Level.WARNING, "Warmup JSON serialization failed", e);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Warmup queries failed", e);
+        } finally {
+            pm.close();
+        }
+
+        try {
+            C2DMessaging.get(getServletContext()).preloadToken();
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Couldn't preload the C2DM auth token", e);
+        }
+
+        log.info("Instance warmed up in " + (System.currentTimeMillis() - startMillis) + "ms");
+    }
+}